@@ -0,0 +1,56 @@
+package com.github.forax.proxy2.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.forax.proxy2.bench.Proxies.Add;
+import com.github.forax.proxy2.bench.Proxies.Delegate;
+import com.github.forax.proxy2.bench.Proxies.IntBinaryOp;
+
+/**
+ * Compare the call through a proxy defined by the Unsafe backend
+ * with a call through a proxy defined by the hidden class backend.
+ * 
+ * The Unsafe backend requires a JDK 16 or older and the hidden class backend a JDK 16 or newer,
+ * so on other JDKs one of the forks fails.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class BackendBenchmark {
+  private final IntBinaryOp direct = new Add();
+  private final IntBinaryOp delegate = new Delegate(direct);
+  private final IntBinaryOp proxy2 = Proxies.proxy2(direct);
+  
+  private int left = 2;
+  private int right = 3;
+  
+  @Benchmark
+  @Fork(3)
+  public int delegate() {
+    return delegate.applyAsInt(left, right);
+  }
+  
+  @Benchmark
+  @Fork(value = 3, jvmArgsAppend = "-Dcom.github.forax.proxy2.backend=unsafe")
+  public int proxy2Unsafe() {
+    return proxy2.applyAsInt(left, right);
+  }
+  
+  @Benchmark
+  @Fork(value = 3, jvmArgsAppend = "-Dcom.github.forax.proxy2.backend=hidden")
+  public int proxy2Hidden() {
+    return proxy2.applyAsInt(left, right);
+  }
+}
@@ -0,0 +1,66 @@
+package com.github.forax.proxy2.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.forax.proxy2.bench.Proxies.Add;
+import com.github.forax.proxy2.bench.Proxies.IntBinaryOp;
+
+/**
+ * Latency of the first call of a freshly created proxy,
+ * for proxy2 it includes the call to the bootstrap method and the linking of the callsite
+ * unless the proxy is eagerly linked.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 100)
+@Measurement(iterations = 100)
+@Fork(5)
+@State(Scope.Thread)
+public class BootstrapBenchmark {
+  private final IntBinaryOp direct = new Add();
+  
+  private IntBinaryOp proxy2;
+  private IntBinaryOp proxy2Eager;
+  private IntBinaryOp proxy2Intrinsic;
+  private IntBinaryOp jdkProxy;
+  
+  @Setup(Level.Iteration)
+  public void setup() {
+    proxy2 = Proxies.proxy2(direct);
+    proxy2Eager = Proxies.proxy2Eager(direct);
+    proxy2Intrinsic = Proxies.proxy2Intrinsic(direct);
+    jdkProxy = Proxies.jdkProxy(direct);
+  }
+  
+  @Benchmark
+  public int proxy2FirstCall() {
+    return proxy2.applyAsInt(2, 3);
+  }
+  
+  @Benchmark
+  public int proxy2EagerFirstCall() {
+    return proxy2Eager.applyAsInt(2, 3);
+  }
+  
+  @Benchmark
+  public int proxy2IntrinsicFirstCall() {
+    return proxy2Intrinsic.applyAsInt(2, 3);
+  }
+  
+  @Benchmark
+  public int jdkProxyFirstCall() {
+    return jdkProxy.applyAsInt(2, 3);
+  }
+}
@@ -0,0 +1,69 @@
+package com.github.forax.proxy2.bench;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.forax.proxy2.Proxy2.ProxyFactory;
+import com.github.forax.proxy2.bench.Proxies.Add;
+import com.github.forax.proxy2.bench.Proxies.Delegate;
+import com.github.forax.proxy2.bench.Proxies.IntBinaryOp;
+import com.github.forax.proxy2.bench.Proxies.IntBinaryOpFactory;
+
+/**
+ * Cost of the creation of a proxy factory (proxy class generation) and
+ * of the creation of a proxy instance from an existing factory.
+ * 
+ * Note that {@link Proxy#getProxyClass(ClassLoader, Class...)} caches the generated class,
+ * so jdkProxyClass only measures the cache lookup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(3)
+@State(Scope.Benchmark)
+public class FactoryBenchmark {
+  private final IntBinaryOp direct = new Add();
+  private final ProxyFactory<IntBinaryOp> factory = Proxies.proxy2Factory();
+  private final IntBinaryOpFactory typedFactory = Proxies.proxy2TypedFactory();
+  
+  @Benchmark
+  public Object proxy2Factory() {
+    return Proxies.proxy2Factory();
+  }
+  
+  @Benchmark
+  public Object jdkProxyClass() {
+    return Proxy.getProxyClass(IntBinaryOp.class.getClassLoader(), IntBinaryOp.class);
+  }
+  
+  @Benchmark
+  public Object newDelegate() {
+    return new Delegate(direct);
+  }
+  
+  @Benchmark
+  public Object proxy2Instance() {
+    return factory.create(direct);
+  }
+  
+  @Benchmark
+  public Object proxy2TypedInstance() {
+    return typedFactory.create(direct);
+  }
+  
+  @Benchmark
+  public Object jdkProxyInstance() {
+    return Proxies.jdkProxy(direct);
+  }
+}
@@ -0,0 +1,71 @@
+package com.github.forax.proxy2.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.forax.proxy2.bench.Proxies.Add;
+import com.github.forax.proxy2.bench.Proxies.Delegate;
+import com.github.forax.proxy2.bench.Proxies.IntBinaryOp;
+
+/**
+ * Steady state cost of a call through a proxy.
+ * 
+ * Run with {@code -prof gc} to get the allocation per call
+ * (the {@code gc.alloc.rate.norm} column).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(3)
+@State(Scope.Benchmark)
+public class InvocationBenchmark {
+  private final IntBinaryOp direct = new Add();
+  private final IntBinaryOp delegate = new Delegate(direct);
+  private final IntBinaryOp proxy2 = Proxies.proxy2(direct);
+  private final IntBinaryOp proxy2Intrinsic = Proxies.proxy2Intrinsic(direct);
+  private final IntBinaryOp proxy2Unboxed = Proxies.proxy2Unboxed(direct);
+  private final IntBinaryOp jdkProxy = Proxies.jdkProxy(direct);
+  
+  private int left = 2;
+  private int right = 3;
+  
+  @Benchmark
+  public int direct() {
+    return direct.applyAsInt(left, right);
+  }
+  
+  @Benchmark
+  public int delegate() {
+    return delegate.applyAsInt(left, right);
+  }
+  
+  @Benchmark
+  public int proxy2() {
+    return proxy2.applyAsInt(left, right);
+  }
+  
+  @Benchmark
+  public int proxy2Intrinsic() {
+    return proxy2Intrinsic.applyAsInt(left, right);
+  }
+  
+  @Benchmark
+  public int proxy2Unboxed() {
+    return proxy2Unboxed.applyAsInt(left, right);
+  }
+  
+  @Benchmark
+  public int jdkProxy() {
+    return jdkProxy.applyAsInt(left, right);
+  }
+}
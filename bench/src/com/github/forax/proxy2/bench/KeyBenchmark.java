@@ -0,0 +1,136 @@
+package com.github.forax.proxy2.bench;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.forax.proxy2.Proxy2;
+import com.github.forax.proxy2.Proxy2.Intrinsic;
+import com.github.forax.proxy2.Proxy2.ProxyContext;
+import com.github.forax.proxy2.Proxy2.ProxyFactory;
+import com.github.forax.proxy2.Proxy2.ProxyHandler;
+
+/**
+ * Cost of a lookup in a {@link HashMap} using a composite key (a String and an int),
+ * either a hand-written key class or proxies whose equals and hashCode are implemented
+ * by method handles or by intrinsics.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(3)
+@State(Scope.Benchmark)
+public class KeyBenchmark {
+  public interface Route {
+    // marker interface
+  }
+  
+  static final class RouteKey implements Route {
+    private final String host;
+    private final int port;
+    
+    RouteKey(String host, int port) {
+      this.host = host;
+      this.port = port;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof RouteKey)) {
+        return false;
+      }
+      RouteKey key = (RouteKey)o;
+      return Objects.equals(host, key.host) && port == key.port;
+    }
+    
+    @Override
+    public int hashCode() {
+      return 31 * Objects.hashCode(host) + port;
+    }
+  }
+  
+  static class ValueHandler extends ProxyHandler.Default {
+    private final boolean intrinsic;
+    
+    ValueHandler(boolean intrinsic) {
+      this.intrinsic = intrinsic;
+    }
+    
+    @Override
+    public boolean override(Method method) {
+      return method.getDeclaringClass() == Object.class;
+    }
+    
+    @Override
+    public Intrinsic intrinsic(Method method, MethodType methodType) {
+      if (!intrinsic) {
+        return null;
+      }
+      switch(method.getName()) {
+      case "equals":
+        return Intrinsic.valueEquals();
+      case "hashCode":
+        return Intrinsic.cachedValueHashCode();
+      default:
+        return null;
+      }
+    }
+    
+    @Override
+    public CallSite bootstrap(ProxyContext context) throws Throwable {
+      return new ConstantCallSite(context.fieldBasedImplementation());
+    }
+  }
+  
+  private static final Class<?>[] FIELD_TYPES = { String.class, int.class };
+  private static final ProxyFactory<Route> MH_FACTORY =
+      Proxy2.createAnonymousProxyFactory(Route.class, FIELD_TYPES, new ValueHandler(false));
+  private static final ProxyFactory<Route> INTRINSIC_FACTORY =
+      Proxy2.createAnonymousProxyFactory(Route.class, FIELD_TYPES, new ValueHandler(true));
+  
+  private final HashMap<Object, Integer> keys = new HashMap<>();
+  private final HashMap<Object, Integer> mhProxies = new HashMap<>();
+  private final HashMap<Object, Integer> intrinsicProxies = new HashMap<>();
+  {
+    for(int i = 0; i < 1_000; i++) {
+      String host = "host" + (i % 10);
+      keys.put(new RouteKey(host, i), i);
+      mhProxies.put(MH_FACTORY.create(host, i), i);
+      intrinsicProxies.put(INTRINSIC_FACTORY.create(host, i), i);
+    }
+  }
+  
+  private final Object key = new RouteKey("host3", 503);
+  private final Object mhProxy = MH_FACTORY.create("host3", 503);
+  private final Object intrinsicProxy = INTRINSIC_FACTORY.create("host3", 503);
+  
+  @Benchmark
+  public Integer key() {
+    return keys.get(key);
+  }
+  
+  @Benchmark
+  public Integer proxy2MethodHandle() {
+    return mhProxies.get(mhProxy);
+  }
+  
+  @Benchmark
+  public Integer proxy2Intrinsic() {
+    return intrinsicProxies.get(intrinsicProxy);
+  }
+}
@@ -0,0 +1,79 @@
+package com.github.forax.proxy2.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.github.forax.proxy2.Proxy2.ProxyFactory;
+import com.github.forax.proxy2.bench.Proxies.Delegate;
+import com.github.forax.proxy2.bench.Proxies.IntBinaryOp;
+
+/**
+ * Cost of a call through proxies of the same proxy class that delegate to 16 different implementation classes,
+ * more than the number of receiver classes the inlining cache of proxy2 keeps before becoming megamorphic.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(3)
+@State(Scope.Benchmark)
+public class MegamorphicBenchmark {
+  private static final IntBinaryOp[] IMPLEMENTATIONS = {
+    new IntBinaryOp() { @Override public int applyAsInt(int left, int right) { return left + right; } },
+    new IntBinaryOp() { @Override public int applyAsInt(int left, int right) { return left - right; } },
+    new IntBinaryOp() { @Override public int applyAsInt(int left, int right) { return left * right; } },
+    new IntBinaryOp() { @Override public int applyAsInt(int left, int right) { return left / right; } },
+    new IntBinaryOp() { @Override public int applyAsInt(int left, int right) { return left % right; } },
+    new IntBinaryOp() { @Override public int applyAsInt(int left, int right) { return left & right; } },
+    new IntBinaryOp() { @Override public int applyAsInt(int left, int right) { return left | right; } },
+    new IntBinaryOp() { @Override public int applyAsInt(int left, int right) { return left ^ right; } },
+    new IntBinaryOp() { @Override public int applyAsInt(int left, int right) { return left << right; } },
+    new IntBinaryOp() { @Override public int applyAsInt(int left, int right) { return left >> right; } },
+    new IntBinaryOp() { @Override public int applyAsInt(int left, int right) { return left >>> right; } },
+    new IntBinaryOp() { @Override public int applyAsInt(int left, int right) { return Math.max(left, right); } },
+    new IntBinaryOp() { @Override public int applyAsInt(int left, int right) { return Math.min(left, right); } },
+    new IntBinaryOp() { @Override public int applyAsInt(int left, int right) { return left; } },
+    new IntBinaryOp() { @Override public int applyAsInt(int left, int right) { return right; } },
+    new IntBinaryOp() { @Override public int applyAsInt(int left, int right) { return -left; } },
+  };
+
+  private final IntBinaryOp[] delegates = new IntBinaryOp[IMPLEMENTATIONS.length];
+  private final IntBinaryOp[] proxy2s = new IntBinaryOp[IMPLEMENTATIONS.length];
+  {
+    ProxyFactory<IntBinaryOp> factory = Proxies.proxy2Factory();
+    for(int i = 0; i < IMPLEMENTATIONS.length; i++) {
+      delegates[i] = new Delegate(IMPLEMENTATIONS[i]);
+      proxy2s[i] = factory.create(IMPLEMENTATIONS[i]);
+    }
+  }
+
+  private int left = 7;
+  private int right = 3;
+
+  @Benchmark
+  public int delegate() {
+    int sum = 0;
+    for(IntBinaryOp op: delegates) {
+      sum += op.applyAsInt(left, right);
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public int proxy2() {
+    int sum = 0;
+    for(IntBinaryOp op: proxy2s) {
+      sum += op.applyAsInt(left, right);
+    }
+    return sum;
+  }
+}
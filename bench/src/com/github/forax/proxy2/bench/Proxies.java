@@ -0,0 +1,160 @@
+package com.github.forax.proxy2.bench;
+
+import static com.github.forax.proxy2.MethodBuilder.methodBuilder;
+import static java.lang.invoke.MethodHandles.publicLookup;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
+
+import com.github.forax.proxy2.Invocation;
+import com.github.forax.proxy2.Proxy2;
+import com.github.forax.proxy2.Proxy2.Intrinsic;
+import com.github.forax.proxy2.Proxy2.ProxyContext;
+import com.github.forax.proxy2.Proxy2.ProxyFactory;
+import com.github.forax.proxy2.Proxy2.ProxyHandler;
+import com.github.forax.proxy2.UnboxedInvocationHandler;
+
+/**
+ * The different implementations of {@link IntBinaryOp} compared by the benchmarks.
+ */
+public class Proxies {
+  private Proxies() {
+    // no instance
+  }
+  
+  public interface IntBinaryOp {
+    public int applyAsInt(int left, int right);
+  }
+  
+  public static class Add implements IntBinaryOp {
+    @Override
+    public int applyAsInt(int left, int right) {
+      return left + right;
+    }
+  }
+  
+  /**
+   * A hand-written delegate, the baseline of all benchmarks.
+   */
+  public static class Delegate implements IntBinaryOp {
+    private final IntBinaryOp delegate;
+    
+    public Delegate(IntBinaryOp delegate) {
+      this.delegate = delegate;
+    }
+    
+    @Override
+    public int applyAsInt(int left, int right) {
+      return delegate.applyAsInt(left, right);
+    }
+  }
+  
+  /**
+   * A proxy2 handler that delegates all calls to the object stored in the first field of the proxy.
+   */
+  public static final ProxyHandler DELEGATE_HANDLER = new ProxyHandler.Default() {
+    @Override
+    public boolean override(Method method) {
+      return true;
+    }
+    
+    @Override
+    public CallSite bootstrap(ProxyContext context) throws Throwable {
+      return new ConstantCallSite(
+          methodBuilder(context.type())
+            .dropFirst()
+            .unreflect(publicLookup(), context.method()));
+    }
+  };
+  
+  public static ProxyFactory<IntBinaryOp> proxy2Factory() {
+    return Proxy2.createAnonymousProxyFactory(IntBinaryOp.class, new Class<?>[] { IntBinaryOp.class }, DELEGATE_HANDLER);
+  }
+  
+  public interface IntBinaryOpFactory {
+    public IntBinaryOp create(IntBinaryOp delegate);
+  }
+  
+  public static IntBinaryOpFactory proxy2TypedFactory() {
+    return Proxy2.createAnonymousProxyFactory(MethodHandles.publicLookup(), IntBinaryOpFactory.class, DELEGATE_HANDLER);
+  }
+  
+  public static IntBinaryOp proxy2(IntBinaryOp delegate) {
+    return proxy2Factory().create(delegate);
+  }
+  
+  public static IntBinaryOp proxy2Eager(IntBinaryOp delegate) {
+    MethodHandle factory = Proxy2.createEagerlyLinkedProxyFactory(MethodHandles.publicLookup(),
+        MethodType.methodType(IntBinaryOp.class, IntBinaryOp.class), DELEGATE_HANDLER, null).factory();
+    try {
+      return (IntBinaryOp)factory.invokeExact(delegate);
+    } catch(RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new UndeclaredThrowableException(e);
+    }
+  }
+  
+  /**
+   * A proxy2 handler that delegates all calls to the object stored in the first field of the proxy
+   * using an intrinsic, so without invokedynamic.
+   */
+  public static final ProxyHandler INTRINSIC_DELEGATE_HANDLER = new ProxyHandler.Default() {
+    @Override
+    public boolean override(Method method) {
+      return true;
+    }
+    
+    @Override
+    public Intrinsic intrinsic(Method method, MethodType methodType) {
+      return Intrinsic.delegate(0);
+    }
+    
+    @Override
+    public CallSite bootstrap(ProxyContext context) throws Throwable {
+      throw new AssertionError("all methods are intrinsics");
+    }
+  };
+  
+  public static IntBinaryOp proxy2Intrinsic(IntBinaryOp delegate) {
+    return Proxy2.createAnonymousProxyFactory(IntBinaryOp.class, new Class<?>[] { IntBinaryOp.class }, INTRINSIC_DELEGATE_HANDLER)
+        .create(delegate);
+  }
+  
+  public static IntBinaryOp proxy2Unboxed(IntBinaryOp delegate) {
+    return Proxy2.newProxyInstance(IntBinaryOp.class, new UnboxedInvocationHandler() {
+      @Override
+      public Object invoke(Invocation invocation) {
+        throw new UnsupportedOperationException();
+      }
+      
+      @Override
+      public int invokeInt(Invocation invocation) {
+        return delegate.applyAsInt(invocation.intArgument(0), invocation.intArgument(1));
+      }
+    });
+  }
+  
+  public static IntBinaryOp jdkProxy(IntBinaryOp delegate) {
+    return (IntBinaryOp)Proxy.newProxyInstance(IntBinaryOp.class.getClassLoader(),
+        new Class<?>[] { IntBinaryOp.class },
+        new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            try {
+              return method.invoke(delegate, args);
+            } catch(InvocationTargetException e) {
+              throw e.getCause();
+            }
+          }
+        });
+  }
+}
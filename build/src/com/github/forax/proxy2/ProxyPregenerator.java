@@ -0,0 +1,106 @@
+package com.github.forax.proxy2;
+
+import java.io.IOException;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import com.github.forax.proxy2.Proxy2.ProxyContext;
+import com.github.forax.proxy2.Proxy2.ProxyHandler;
+import com.github.forax.proxy2.Proxy2.Template;
+
+/**
+ * Generate ahead of time the bytecode of the proxy classes of a list of interfaces into a jar.
+ * If the jar is in the classpath, {@link Proxy2} will load the bytecode from the jar instead of
+ * generating it, only the binding of the proxy class to its handler is done at runtime.
+ *
+ * Usage:
+ * <pre>
+ *   ProxyPregenerator output.jar [-handler handlerClassName] interfaceName[:fieldType,fieldType...] ...
+ * </pre>
+ * The handler class must have a public no-arg constructor, its methods {@code override} and
+ * {@code isMutable} are used to select the implemented methods and the mutable fields,
+ * by default only the abstract methods are implemented and the fields are not mutable.
+ * The proxy classes are generated for the public lookup and for the backend of the current VM
+ * (see the system property {@code com.github.forax.proxy2.backend}).
+ */
+public class ProxyPregenerator {
+  private static Class<?> type(String name) throws ClassNotFoundException {
+    switch(name) {
+    case "boolean": return boolean.class;
+    case "byte": return byte.class;
+    case "char": return char.class;
+    case "short": return short.class;
+    case "int": return int.class;
+    case "long": return long.class;
+    case "float": return float.class;
+    case "double": return double.class;
+    default:
+      return Class.forName(name, false, ProxyPregenerator.class.getClassLoader());
+    }
+  }
+
+  private static MethodType methodType(String spec) throws ClassNotFoundException {
+    int index = spec.indexOf(':');
+    if (index == -1) {
+      return MethodType.methodType(type(spec));
+    }
+    ArrayList<Class<?>> fieldTypes = new ArrayList<>();
+    for(String fieldType: spec.substring(index + 1).split(",")) {
+      fieldTypes.add(type(fieldType.trim()));
+    }
+    return MethodType.methodType(type(spec.substring(0, index)), fieldTypes);
+  }
+
+  private static void usage() {
+    System.err.println("usage: ProxyPregenerator output.jar [-handler handlerClassName] interfaceName[:fieldType,fieldType...] ...");
+    System.exit(1);
+  }
+
+  public static void main(String[] args) throws IOException, ReflectiveOperationException {
+    if (args.length < 2) {
+      usage();
+      return;
+    }
+
+    ProxyHandler handler = new ProxyHandler.Default() {
+      @Override
+      public CallSite bootstrap(ProxyContext context) {
+        throw new AssertionError();  // the proxy classes are never created
+      }
+    };
+    int start = 1;
+    if (args[1].equals("-handler")) {
+      if (args.length < 4) {  // no handler class name or no interface
+        usage();
+        return;
+      }
+      handler = (ProxyHandler)Class.forName(args[2]).getConstructor().newInstance();
+      start = 3;
+    }
+
+    Lookup lookup = MethodHandles.publicLookup();
+    ProxyBackend backend = ProxyBackend.INSTANCE;
+    HashSet<String> names = new HashSet<>();
+    try(JarOutputStream output = new JarOutputStream(Files.newOutputStream(Paths.get(args[0])))) {
+      for(int i = start; i < args.length; i++) {
+        MethodType methodType = methodType(args[i]);
+        Template template = Proxy2.template(backend, lookup, methodType, handler);
+        String name = Template.resourceName(methodType.returnType(), template.key);
+        if (!names.add(name)) {  // same interface and same fields
+          continue;
+        }
+        output.putNextEntry(new JarEntry(name));
+        template.write(output);
+        output.closeEntry();
+      }
+    }
+  }
+}
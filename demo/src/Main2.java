@@ -1,5 +1,4 @@
 import static com.github.forax.proxy2.MethodBuilder.methodBuilder;
-import static com.github.forax.proxy2.Proxy2.createAnonymousProxyFactory;
 import static java.lang.invoke.MethodHandles.publicLookup;
 import static java.lang.invoke.MethodType.methodType;
 
@@ -10,6 +9,8 @@ import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
 import java.lang.reflect.UndeclaredThrowableException;
 
+import com.github.forax.proxy2.Proxy2;
+import com.github.forax.proxy2.Proxy2.ProxyCache;
 import com.github.forax.proxy2.Proxy2.ProxyContext;
 import com.github.forax.proxy2.Proxy2.ProxyHandler;
 
@@ -18,33 +19,27 @@ public class Main2 {
     int applyAsInt(int left, int right);
   }
   
-  private static final ClassValue<MethodHandle> FACTORY_CACHE = 
-      new ClassValue<MethodHandle>() {
+  private static final ProxyCache FACTORY_CACHE = 
+      Proxy2.createProxyCache(publicLookup(), new ProxyHandler.Default() {
         @Override
-        protected MethodHandle computeValue(final Class<?> type) {
-          return createAnonymousProxyFactory(publicLookup(), methodType(type, type), 
-              new ProxyHandler.Default() {
-                @Override
-                public boolean override(Method method) { return true; }
-                
-                @Override
-                public CallSite bootstrap(ProxyContext context) throws Throwable {
-                  Method method = context.method();
-                  MethodHandle target = methodBuilder(context.type())
-                      .dropFirst()  // drop the proxy object
-                      .unreflect(MethodHandles.publicLookup(), method);
-                  return new ConstantCallSite(target);
-                }
-              });
+        public boolean override(Method method) { return true; }
+        
+        @Override
+        public CallSite bootstrap(ProxyContext context) throws Throwable {
+          Method method = context.method();
+          MethodHandle target = methodBuilder(context.type())
+              .dropFirst()  // drop the proxy object
+              .unreflect(MethodHandles.publicLookup(), method);
+          return new ConstantCallSite(target);
         }
-      };
+      });
   
   private static <T> T proxy(T delegate, Class<T> interfaze) {
     /*if (!Modifier.isPublic(interfaze.getModifiers())) {
       throw new IllegalArgumentException(interfaze + " should be public");
     }*/
     try {
-      return interfaze.cast(FACTORY_CACHE.get(interfaze).invoke(delegate));
+      return interfaze.cast(FACTORY_CACHE.factory(methodType(interfaze, interfaze)).invoke(delegate));
     } catch(RuntimeException | Error e) {
       throw e;
     } catch (Throwable e) {
@@ -13,6 +13,7 @@ import java.util.Arrays;
 import java.util.function.IntUnaryOperator;
 
 import com.github.forax.proxy2.Proxy2;
+import com.github.forax.proxy2.Proxy2.ProxyCache;
 import com.github.forax.proxy2.Proxy2.ProxyContext;
 import com.github.forax.proxy2.Proxy2.ProxyHandler;
 
@@ -21,34 +22,28 @@ import com.github.forax.proxy2.Proxy2.ProxyHandler;
  * Emulate the java.lang.reflect.Proxy API using the Proxy2 API.
  */
 public class Retrofit {
-  private static ClassValue<MethodHandle> CACHE = new ClassValue<MethodHandle>() {
+  private static final ProxyCache CACHE = Proxy2.createProxyCache(publicLookup(), new ProxyHandler() {
     @Override
-    protected MethodHandle computeValue(Class<?> type) {
-      MethodHandle mh = Proxy2.createAnonymousProxyFactory(publicLookup(), methodType(type, InvocationHandler.class), new ProxyHandler() {
-        @Override
-        public boolean override(Method method) {
-          return true;
-        }
-        
-        @Override
-        public boolean isMutable(int fieldIndex, Class<?> fieldType) {
-          return false;
-        }
-        
-        @Override
-        public CallSite bootstrap(ProxyContext context) throws Throwable {
-          Method method = context.method();
-          return new ConstantCallSite(
-              methodBuilder(context.type())
-                .convertReturnTypeTo(Object.class)
-                .insertAt(2, Method.class, method)
-                .boxLast(method.getParameterCount())
-                .call(INVOCATIONHANDLER_INVOKE));
-        }
-      });
-      return mh.asType(methodType(Object.class, InvocationHandler.class));
+    public boolean override(Method method) {
+      return true;
     }
-  };
+    
+    @Override
+    public boolean isMutable(int fieldIndex, Class<?> fieldType) {
+      return false;
+    }
+    
+    @Override
+    public CallSite bootstrap(ProxyContext context) throws Throwable {
+      Method method = context.method();
+      return new ConstantCallSite(
+          methodBuilder(context.type())
+            .convertReturnTypeTo(Object.class)
+            .insertAt(2, Method.class, method)
+            .boxLast(method.getParameterCount())
+            .call(INVOCATIONHANDLER_INVOKE));
+    }
+  });
   
   final static MethodHandle INVOCATIONHANDLER_INVOKE;
   static {
@@ -66,7 +61,7 @@ public class Retrofit {
   
   public static <T> T newProxyInstance(Class<T> type, InvocationHandler invocationHandler) {
     try {
-      return type.cast(CACHE.get(type).invokeExact(invocationHandler));
+      return type.cast(CACHE.factory(methodType(type, InvocationHandler.class)).invoke(invocationHandler));
     } catch(RuntimeException | Error e) {
       throw e;
     } catch (Throwable e) {
@@ -0,0 +1,114 @@
+package com.github.forax.proxy2;
+
+import static java.lang.invoke.MethodHandles.dropArguments;
+import static java.lang.invoke.MethodHandles.foldArguments;
+import static java.lang.invoke.MethodHandles.guardWithTest;
+import static java.lang.invoke.MethodHandles.insertArguments;
+import static java.lang.invoke.MethodHandles.lookup;
+import static java.lang.invoke.MethodType.methodType;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.github.forax.proxy2.MethodBuilder.Fun;
+
+/**
+ * A callsite that records the classes of the reference arguments (the proxy fields and the method arguments)
+ * during a warm-up window and then relinks itself once to a target specialized for the classes observed,
+ * guarded by class checks, with the generic target as fallback.
+ *
+ * The warm-up window (number of calls) can be configured with the system property
+ * {@code com.github.forax.proxy2.profileWindow} (1000 by default).
+ *
+ * @see Proxy2.ProxyContext#adaptiveCallSite(MethodHandle, Fun)
+ */
+class AdaptiveCallSite extends MutableCallSite {
+  static final int PROFILE_WINDOW = Integer.getInteger("com.github.forax.proxy2.profileWindow", 1000);
+  private static final Class<?> POLYMORPHIC = AdaptiveCallSite.class;  // more than one class or null seen
+  private static final MethodHandle PROFILE, CLASS_CHECK;
+  static {
+    Lookup lookup = lookup();
+    try {
+      PROFILE = lookup.findVirtual(AdaptiveCallSite.class, "profile", methodType(void.class, Object[].class));
+      CLASS_CHECK = lookup.findStatic(AdaptiveCallSite.class, "classCheck", methodType(boolean.class, Object.class, Class.class));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private final MethodHandle generic;
+  private final Fun<? super MethodType, ? extends MethodHandle> specializer;
+  private final Class<?>[] profile;    // the accesses are racy, the guards make the specialization safe
+  private int counter;                 // racy too, we just need an approximation
+  private final AtomicBoolean relinked = new AtomicBoolean();
+
+  AdaptiveCallSite(MethodHandle generic, Fun<? super MethodType, ? extends MethodHandle> specializer) {
+    super(generic.type());
+    this.generic = generic;
+    this.specializer = specializer;
+    MethodType type = generic.type();
+    profile = new Class<?>[type.parameterCount()];
+    setTarget(foldArguments(generic,
+        PROFILE.bindTo(this).asCollector(Object[].class, type.parameterCount()).asType(type.changeReturnType(void.class))));
+  }
+
+  @SuppressWarnings("unused")  // used by a method handle
+  private static boolean classCheck(Object value, Class<?> clazz) {
+    return value != null && value.getClass() == clazz;
+  }
+
+  @SuppressWarnings("unused")  // used by a method handle
+  private void profile(Object[] args) {
+    MethodType type = type();
+    for(int i = 1; i < args.length; i++) {  // the proxy class is always the same
+      if (type.parameterType(i).isPrimitive()) {
+        continue;
+      }
+      Object arg = args[i];
+      Class<?> clazz = (arg == null)? POLYMORPHIC: arg.getClass();
+      Class<?> seen = profile[i];
+      if (seen == null) {
+        profile[i] = clazz;
+      } else if (seen != clazz) {
+        profile[i] = POLYMORPHIC;
+      }
+    }
+    if (++counter >= PROFILE_WINDOW && relinked.compareAndSet(false, true)) {
+      setTarget(specialize());
+      syncAll(new MutableCallSite[] { this });
+    }
+  }
+
+  private MethodHandle specialize() {
+    MethodType type = type();
+    MethodType profiledType = type;
+    for(int i = 1; i < profile.length; i++) {
+      Class<?> clazz = profile[i];
+      if (clazz != null && clazz != POLYMORPHIC && clazz != type.parameterType(i)) {
+        profiledType = profiledType.changeParameterType(i, clazz);
+      }
+    }
+    if (profiledType.equals(type)) {  // nothing to specialize, stop profiling
+      return generic;
+    }
+
+    MethodHandle target;
+    try {
+      target = specializer.apply(profiledType).asType(profiledType).asType(type);
+    } catch (NoSuchMethodException | NoSuchFieldException | IllegalAccessException | RuntimeException e) {
+      return generic;  // the specialization fails, keep the generic target
+    }
+    for(int i = profile.length; --i >= 1;) {
+      Class<?> clazz = profiledType.parameterType(i);
+      if (clazz == type.parameterType(i)) {
+        continue;
+      }
+      MethodHandle test = insertArguments(CLASS_CHECK, 1, clazz).asType(methodType(boolean.class, type.parameterType(i)));
+      target = guardWithTest(dropArguments(test, 0, type.parameterList().subList(0, i)), target, generic);
+    }
+    return target;
+  }
+}
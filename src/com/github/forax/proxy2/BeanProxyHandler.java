@@ -0,0 +1,221 @@
+package com.github.forax.proxy2;
+
+import static java.lang.invoke.MethodHandles.dropArguments;
+import static java.lang.invoke.MethodHandles.foldArguments;
+import static java.lang.invoke.MethodHandles.identity;
+import static java.lang.invoke.MethodHandles.insertArguments;
+import static java.lang.invoke.MethodType.methodType;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+import com.github.forax.proxy2.Proxy2.Intrinsic;
+import com.github.forax.proxy2.Proxy2.ProxyCache;
+import com.github.forax.proxy2.Proxy2.ProxyContext;
+import com.github.forax.proxy2.Proxy2.ProxyHandler;
+
+/**
+ * Implement an interface containing getters and setters as a bean with one field by property,
+ * typed with the type of the property.
+ *
+ * A getter is a method with no parameter named {@code name()}, {@code getName()}
+ * or {@code isName()} if it returns a boolean, a setter is a method with one parameter
+ * named {@code name(value)} or {@code setName(value)} that returns void or the bean itself.
+ * The fields are sorted by property name.
+ *
+ * The getters are implemented by an {@link Intrinsic#returnField(int) intrinsic},
+ * the setters use {@link ProxyContext#findFieldSetter(int, Class)}
+ * and toString() returns the name of the interface followed by the name and the value of each property.
+ *
+ * @see Proxy2#newBean(Class)
+ * @see Proxy2#createBeanFactory(java.lang.invoke.MethodHandles.Lookup, Class)
+ */
+class BeanProxyHandler extends ProxyHandler.Default {
+  /**
+   * The properties of a bean interface.
+   */
+  static final class BeanInfo {
+    final String[] names;           // sorted
+    final Class<?>[] types;
+    final HashMap<Method, Integer> getters = new HashMap<>();
+    final HashMap<Method, Integer> setters = new HashMap<>();
+
+    BeanInfo(Class<?> type) {
+      if (!type.isInterface()) {
+        throw new IllegalArgumentException(type + " is not an interface");
+      }
+      TreeMap<String, Class<?>> properties = new TreeMap<>();
+      for(Method method: type.getMethods()) {
+        if (!Modifier.isAbstract(method.getModifiers()) || isObjectMethod(method)) {
+          continue;
+        }
+        Class<?> propertyType;
+        if (isGetter(method)) {
+          propertyType = method.getReturnType();
+        } else if (isSetter(type, method)) {
+          propertyType = method.getParameterTypes()[0];
+        } else {
+          throw new IllegalArgumentException(method + " is neither a getter nor a setter");
+        }
+        String name = propertyName(method);
+        Class<?> previous = properties.put(name, propertyType);
+        if (previous != null && previous != propertyType) {
+          throw new IllegalArgumentException("property " + name + " of " + type + " has two types " + previous + " and " + propertyType);
+        }
+      }
+      names = properties.keySet().toArray(new String[properties.size()]);
+      types = properties.values().toArray(new Class<?>[properties.size()]);
+      for(Method method: type.getMethods()) {
+        if (!Modifier.isAbstract(method.getModifiers()) || isObjectMethod(method)) {
+          continue;
+        }
+        int index = indexOf(propertyName(method));
+        ((method.getParameterTypes().length == 0)? getters: setters).put(method, index);
+      }
+    }
+
+    private int indexOf(String name) {
+      for(int i = 0; i < names.length; i++) {
+        if (names[i].equals(name)) {
+          return i;
+        }
+      }
+      throw new AssertionError("unknown property " + name);
+    }
+
+    MethodType beanType(Class<?> type) {
+      return methodType(type, types);
+    }
+
+    private static boolean isGetter(Method method) {
+      return method.getParameterTypes().length == 0 && method.getReturnType() != void.class;
+    }
+
+    private static boolean isSetter(Class<?> type, Method method) {
+      Class<?> returnType = method.getReturnType();
+      return method.getParameterTypes().length == 1 && (returnType == void.class || returnType.isAssignableFrom(type));
+    }
+
+    private static String propertyName(Method method) {
+      String name = method.getName();
+      boolean getter = method.getParameterTypes().length == 0;
+      if (getter && method.getReturnType() == boolean.class && isPrefixed(name, "is")) {
+        return decapitalize(name.substring(2));
+      }
+      if (isPrefixed(name, getter? "get": "set")) {
+        return decapitalize(name.substring(3));
+      }
+      return name;
+    }
+
+    private static boolean isPrefixed(String name, String prefix) {
+      return name.length() > prefix.length() && name.startsWith(prefix) && Character.isUpperCase(name.charAt(prefix.length()));
+    }
+
+    private static String decapitalize(String name) {
+      return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+  }
+
+  static boolean isObjectMethod(Method method) {
+    try {
+      Object.class.getMethod(method.getName(), method.getParameterTypes());
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  static final ClassValue<BeanInfo> BEAN_INFOS = new ClassValue<BeanInfo>() {
+    @Override
+    protected BeanInfo computeValue(Class<?> type) {
+      return new BeanInfo(type);
+    }
+  };
+
+  static final ProxyCache CACHE = Proxy2.createProxyCache(MethodHandles.publicLookup(), new BeanProxyHandler(false));
+
+  // the factories that initialize the properties with their default values
+  static final ClassValue<MethodHandle> DEFAULT_FACTORIES = new ClassValue<MethodHandle>() {
+    @Override
+    protected MethodHandle computeValue(Class<?> type) {
+      return defaultValues(CACHE.factory(BEAN_INFOS.get(type).beanType(type)), 0);
+    }
+  };
+
+  /**
+   * Returns a method handle that calls {@code factory} with the default value of each field
+   * but the last {@code unboundCount} fields.
+   */
+  static MethodHandle defaultValues(MethodHandle factory, int unboundCount) {
+    MethodType type = factory.type();
+    Object[] values = new Object[type.parameterCount() - unboundCount];
+    for(int i = 0; i < values.length; i++) {
+      Class<?> fieldType = type.parameterType(i);
+      values[i] = fieldType.isPrimitive()? Array.get(Array.newInstance(fieldType, 1), 0): null;
+    }
+    return insertArguments(factory, 0, values);
+  }
+
+  private final boolean tracked;
+
+  /**
+   * Creates a handler of beans.
+   * @param tracked true if the beans are tracked by a {@link UnitOfWork}, in that case the proxy
+   *                has the fields described by {@link UnitOfWork#trackedBeanType(Class)}.
+   */
+  BeanProxyHandler(boolean tracked) {
+    this.tracked = tracked;
+  }
+
+  @Override
+  public boolean isMutable(int fieldIndex, Class<?> fieldType) {
+    return true;
+  }
+
+  @Override
+  public boolean override(Method method) {
+    return method.getName().equals("toString") && method.getParameterTypes().length == 0;
+  }
+
+  @Override
+  public Intrinsic intrinsic(Method method, MethodType methodType) {
+    Integer index = BEAN_INFOS.get(methodType.returnType()).getters.get(method);
+    return (index == null)? null: Intrinsic.returnField(index);
+  }
+
+  @Override
+  public CallSite bootstrap(ProxyContext context) throws Throwable {
+    Method method = context.method();
+    MethodType type = context.type();
+    Class<?> interfaze = context.proxyInterface();
+    BeanInfo beanInfo = BEAN_INFOS.get(interfaze);
+    if (isObjectMethod(method)) {  // toString or a re-declared equals or hashCode
+      return new ConstantCallSite(context.fieldBasedImplementation(beanInfo.names));
+    }
+    int index = beanInfo.setters.get(method);
+    Class<?> propertyType = beanInfo.types[index];
+    List<Class<?>> fieldTypes = type.parameterList().subList(1, type.parameterCount() - 1);
+
+    // (Object proxy, fields..., propertyType value)void
+    MethodHandle target = context.findFieldSetter(index, propertyType);
+    target = dropArguments(target, 1, fieldTypes);
+    if (tracked) {
+      target = foldArguments(target, UnitOfWork.markDirty(context, index, type.changeReturnType(void.class)));
+    }
+    if (type.returnType() != void.class) {  // return the proxy
+      MethodHandle proxy = dropArguments(identity(Object.class), 1, type.parameterList().subList(1, type.parameterCount()));
+      target = foldArguments(proxy, target);
+    }
+    return new ConstantCallSite(target.asType(type));
+  }
+}
@@ -0,0 +1,42 @@
+package com.github.forax.proxy2;
+
+/**
+ * An object that accepts to add properties at runtime, like a Javascript, a Python or a Groovy object.
+ *
+ * A sub-interface of ExpandoObject can declare getters {@code getName()} and setters {@code setName(value)}
+ * to access to a property with a typed method, any other abstract method {@code name(args...)} calls
+ * the {@link java.lang.invoke.MethodHandle} stored in the property {@code name}.
+ * <pre>
+ *   public interface Point extends ExpandoObject {
+ *     int getX();
+ *     void setX(int x);
+ *   }
+ *   ...
+ *   Point point = Proxy2.newExpando(Point.class);
+ *   point.setX(1);
+ *   point.$("y", 2);
+ * </pre>
+ *
+ * @see Proxy2#newExpando(Class)
+ */
+public interface ExpandoObject {
+  /**
+   * Sets the value of a property, adding the property if it doesn't exist.
+   * @param propertyName the name of the property.
+   * @param value the new value of the property.
+   */
+  public void $(String propertyName, Object value);
+
+  /**
+   * Returns the value of a property.
+   * @param propertyName the name of the property.
+   * @return the value of the property or null if the property doesn't exist.
+   */
+  public Object $(String propertyName);
+
+  /**
+   * Returns the hidden class of the expando object, for debugging purpose.
+   * @return the current hidden class of the expando object.
+   */
+  public HiddenClass getHiddenClass();
+}
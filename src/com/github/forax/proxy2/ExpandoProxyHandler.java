@@ -0,0 +1,270 @@
+package com.github.forax.proxy2;
+
+import static java.lang.invoke.MethodHandles.constant;
+import static java.lang.invoke.MethodHandles.dropArguments;
+import static java.lang.invoke.MethodHandles.exactInvoker;
+import static java.lang.invoke.MethodHandles.filterReturnValue;
+import static java.lang.invoke.MethodHandles.foldArguments;
+import static java.lang.invoke.MethodHandles.guardWithTest;
+import static java.lang.invoke.MethodHandles.identity;
+import static java.lang.invoke.MethodHandles.insertArguments;
+import static java.lang.invoke.MethodType.methodType;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import com.github.forax.proxy2.HiddenClass.Property;
+import com.github.forax.proxy2.Proxy2.ProxyCache;
+import com.github.forax.proxy2.Proxy2.ProxyContext;
+import com.github.forax.proxy2.Proxy2.ProxyHandler;
+
+/**
+ * Implement a sub-interface of {@link ExpandoObject}, the proxy has three fields,
+ * the {@link HiddenClass hidden class}, the stash, an array containing the values of the object properties,
+ * and an array containing the values of the primitive properties (the doubles are stored as raw long bits).
+ * Getting the value of the object property 'foo' is equivalent to
+ *   {@code expando.stash[expando.hiddenClass.propertyMap.get("foo").slot]}
+ *
+ * The getters, the setters and the methods that call a property are linked to an inlining cache
+ * that checks the hidden class of the expando object, a typed getter or setter of an int, a long
+ * or a double doesn't box the value if the property is stored as a primitive.
+ *
+ * @see Proxy2#newExpando(Class)
+ */
+class ExpandoProxyHandler extends ProxyHandler.Default {
+  // the root hidden class of each expando interface, so each interface learns its own expected size
+  static final ClassValue<HiddenClass> ROOTS = new ClassValue<HiddenClass>() {
+    @Override
+    protected HiddenClass computeValue(Class<?> type) {
+      return new HiddenClass();
+    }
+  };
+
+  static final ProxyCache CACHE = Proxy2.createProxyCache(MethodHandles.publicLookup(), new ExpandoProxyHandler());
+
+  /**
+   * Returns the type of the factory of an expando object.
+   */
+  static MethodType expandoType(Class<?> type) {
+    if (!ExpandoObject.class.isAssignableFrom(type)) {
+      throw new IllegalArgumentException(type + " is not a sub-interface of ExpandoObject");
+    }
+    return methodType(type, HiddenClass.class, Object[].class, long[].class);
+  }
+
+  private static String propertyName(String methodName) {
+    String propertyName = methodName.substring(3);
+    return Character.toLowerCase(propertyName.charAt(0)) + propertyName.substring(1);
+  }
+
+  /**
+   * Returns a method handle of type (Object proxy, HiddenClass hiddenClass, Object[] stash, long[] primitives)void
+   * that sets the fields of the proxy, the hidden class last.
+   */
+  private static MethodHandle updater(ProxyContext context) throws NoSuchFieldException {
+    MethodHandle setHiddenClass = dropArguments(context.findFieldSetter(0, HiddenClass.class), 2, Object[].class, long[].class);
+    MethodHandle setStash = dropArguments(context.findFieldSetter(1, Object[].class), 1, HiddenClass.class);
+    setStash = dropArguments(setStash, 3, long[].class);
+    MethodHandle setPrimitives = dropArguments(context.findFieldSetter(2, long[].class), 1, HiddenClass.class, Object[].class);
+    return foldArguments(foldArguments(setHiddenClass, setPrimitives), setStash);
+  }
+
+  @Override
+  public boolean isMutable(int fieldIndex, Class<?> fieldType) {
+    return true;
+  }
+
+  @Override
+  public CallSite bootstrap(ProxyContext context) throws Throwable {
+    Method method = context.method();
+    String name = method.getName();
+    Class<?>[] parameterTypes = method.getParameterTypes();
+    if (method.getDeclaringClass() == ExpandoObject.class) {
+      MethodHandle target;
+      switch(name) {
+      case "getHiddenClass":
+        target = dropArguments(identity(HiddenClass.class), 1, Object[].class, long[].class);
+        target = dropArguments(target, 0, Object.class);
+        break;
+      case "$":
+        if (parameterTypes.length == 1) { // get property
+          target = dropArguments(HiddenClass.GET_PROPERTY, 0, Object.class);
+        } else {  // set property
+          target = insertArguments(HiddenClass.SET_PROPERTY, 4, updater(context));
+        }
+        break;
+      default:
+        throw new UnsupportedOperationException(method.toString());
+      }
+      return new ConstantCallSite(target);
+    }
+
+    if (name.length() > 3 && name.startsWith("get") && parameterTypes.length == 0) {
+      MethodType methodType = methodType(method.getReturnType(), Object.class, HiddenClass.class, Object[].class, long[].class);
+      return new InliningCacheCallSite(propertyName(name), methodType, InliningCacheCallSite.GET_FALLBACK);
+    }
+
+    if (name.length() > 3 && name.startsWith("set") && parameterTypes.length == 1) {
+      MethodType methodType = methodType(void.class, Object.class, HiddenClass.class, Object[].class, long[].class, parameterTypes[0]);
+      return new InliningCacheCallSite(propertyName(name), methodType,
+          insertArguments(InliningCacheCallSite.SET_FALLBACK, 5, updater(context)));
+    }
+
+    MethodType methodType = methodType(MethodHandle.class, Object.class, HiddenClass.class, Object[].class, long[].class);
+    InliningCacheCallSite callSite = new InliningCacheCallSite(name, methodType, InliningCacheCallSite.CALL_FALLBACK);
+    return new ConstantCallSite(
+        foldArguments(
+            dropArguments(exactInvoker(methodType(method.getReturnType(), parameterTypes)),
+                1, Object.class, HiddenClass.class, Object[].class, long[].class),
+            callSite.dynamicInvoker()));
+  }
+
+  /**
+   * A polymorphic inlining cache on the hidden class of the expando object,
+   * after {@link #MAX_HIDDEN_CLASSES} distinct hidden classes the callsite uses the generic path.
+   * A call inlines the method stored in a constant property, guarded by the switch point of the property,
+   * and loads it from the stash if the property is or becomes volatile.
+   *
+   * The hidden classes already seen and the target are updated under the lock of the callsite,
+   * a thread that sees a stale target calls the fallback which does nothing more than the slow path
+   * if the hidden class is already known.
+   */
+  private static final class InliningCacheCallSite extends MutableCallSite {
+    private static final int MAX_HIDDEN_CLASSES = 8;
+    private static final HiddenClass[] NO_HIDDEN_CLASSES = new HiddenClass[0];
+
+    private final String propertyName;
+    private final MethodHandle fallback;
+    private HiddenClass[] hiddenClasses = NO_HIDDEN_CLASSES;  // null if megamorphic, guarded by this
+
+    InliningCacheCallSite(String propertyName, MethodType methodType, MethodHandle fallbackBase) {
+      super(methodType);
+      this.propertyName = propertyName;
+      MethodHandle fallback = fallbackBase.bindTo(this).asType(methodType);
+      this.fallback = fallback;
+      setTarget(fallback);
+    }
+
+    MethodHandle callFallback(Object proxy, HiddenClass hiddenClass, Object[] stash, long[] primitives) {
+      Property property = hiddenClass.propertyMap.get(propertyName);
+      Object propertyValue;
+      if (property == null || !((propertyValue = property.get(stash, primitives)) instanceof MethodHandle)) {
+        throw new NoSuchMethodError(propertyName);
+      }
+      MethodHandle value = (MethodHandle)propertyValue;
+      // load the method, also used once the property becomes volatile
+      MethodHandle target = filterReturnValue(property.getter(Object.class), insertArguments(HiddenClass.AS_METHOD, 1, propertyName));
+      if (property.constant() == value) {  // inline the method
+        SwitchPoint switchPoint = property.methodSwitchPoint();
+        if (property.constant() == value) {  // re-check after the switch point is obtained, see methodSwitchPoint()
+          target = switchPoint.guardWithTest(
+              dropArguments(constant(MethodHandle.class, value), 0, Object.class, HiddenClass.class, Object[].class, long[].class),
+              target);
+        }
+      }
+      link(hiddenClass, target,
+          dropArguments(insertArguments(HiddenClass.CALL, 3, propertyName), 0, Object.class));
+      return value;
+    }
+
+    Object getFallback(Object proxy, HiddenClass hiddenClass, Object[] stash, long[] primitives) {
+      Property property = hiddenClass.propertyMap.get(propertyName);
+      if (property == null) {
+        return null;
+      }
+      link(hiddenClass, property.getter(type().returnType()),
+          dropArguments(insertArguments(HiddenClass.GET_PROPERTY, 3, propertyName), 0, Object.class).asType(type()));
+      return property.get(stash, primitives);
+    }
+
+    void setFallback(Object proxy, HiddenClass hiddenClass, Object[] stash, long[] primitives, MethodHandle updater, Object value) throws Throwable {
+      Property property = hiddenClass.propertyMap.get(propertyName);
+      if (property == null || !property.accept(HiddenClass.kind(value))) {  // new property or new representation
+        HiddenClass.setProperty(proxy, hiddenClass, stash, primitives, updater, propertyName, value);
+        return;
+      }
+
+      Class<?> valueType = type().parameterType(4);
+      MethodHandle setter = property.setter(valueType);
+      if (property.type != Object.class && !valueType.isPrimitive()) {  // check the class of the value
+        MethodHandle isInstance = IS_INSTANCE.bindTo(box(property.type)).asType(methodType(boolean.class, valueType));
+        setter = guardWithTest(dropArguments(isInstance, 0, Object.class, HiddenClass.class, Object[].class, long[].class),
+            setter,
+            fallback);
+      }
+      link(hiddenClass, setter,
+          insertArguments(HiddenClass.SET_PROPERTY, 4, updater, propertyName).asType(type()));
+      property.set(stash, primitives, value);
+    }
+
+    /**
+     * Add a guard on {@code hiddenClass} in front of the current target, or use {@code genericTarget}
+     * if the callsite has seen too many distinct hidden classes.
+     * Do nothing if the hidden class is already known, a thread may see a stale target.
+     */
+    private void link(HiddenClass hiddenClass, MethodHandle hiddenClassTarget, MethodHandle genericTarget) {
+      synchronized(this) {
+        HiddenClass[] hiddenClasses = this.hiddenClasses;
+        if (hiddenClasses == null || contains(hiddenClasses, hiddenClass)) {
+          return;
+        }
+        if (hiddenClasses.length == MAX_HIDDEN_CLASSES) {  // too many different hidden classes
+          this.hiddenClasses = null;
+          setTarget(genericTarget);
+          return;
+        }
+        HiddenClass[] newHiddenClasses = Arrays.copyOf(hiddenClasses, hiddenClasses.length + 1);
+        newHiddenClasses[hiddenClasses.length] = hiddenClass;
+        this.hiddenClasses = newHiddenClasses;
+        setTarget(guardWithTest(CHECK_HIDDEN_CLASS.bindTo(hiddenClass),
+            hiddenClassTarget,
+            getTarget()));
+      }
+    }
+
+    private static boolean contains(HiddenClass[] hiddenClasses, HiddenClass hiddenClass) {
+      for(HiddenClass knownHiddenClass: hiddenClasses) {
+        if (knownHiddenClass == hiddenClass) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static Class<?> box(Class<?> primitiveType) {
+      return (primitiveType == int.class)? Integer.class: (primitiveType == long.class)? Long.class: Double.class;
+    }
+
+    static boolean checkHiddenClass(HiddenClass expectedHiddenClass, Object proxy, HiddenClass hiddenClass) {
+      return expectedHiddenClass == hiddenClass;
+    }
+
+    private static final MethodHandle CHECK_HIDDEN_CLASS, IS_INSTANCE;
+    static final MethodHandle CALL_FALLBACK, GET_FALLBACK, SET_FALLBACK;
+    static {
+      Lookup lookup = MethodHandles.lookup();
+      try {
+        CALL_FALLBACK = lookup.findVirtual(InliningCacheCallSite.class, "callFallback",
+            methodType(MethodHandle.class, Object.class, HiddenClass.class, Object[].class, long[].class));
+        GET_FALLBACK = lookup.findVirtual(InliningCacheCallSite.class, "getFallback",
+            methodType(Object.class, Object.class, HiddenClass.class, Object[].class, long[].class));
+        SET_FALLBACK = lookup.findVirtual(InliningCacheCallSite.class, "setFallback",
+            methodType(void.class, Object.class, HiddenClass.class, Object[].class, long[].class, MethodHandle.class, Object.class));
+        CHECK_HIDDEN_CLASS = lookup.findStatic(InliningCacheCallSite.class, "checkHiddenClass",
+            methodType(boolean.class, HiddenClass.class, Object.class, HiddenClass.class));
+        IS_INSTANCE = lookup.findVirtual(Class.class, "isInstance",
+            methodType(boolean.class, Object.class));
+      } catch (NoSuchMethodException | IllegalAccessException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+}
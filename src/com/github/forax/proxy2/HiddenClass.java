@@ -0,0 +1,428 @@
+package com.github.forax.proxy2;
+
+import static java.lang.invoke.MethodHandles.arrayElementGetter;
+import static java.lang.invoke.MethodHandles.arrayElementSetter;
+import static java.lang.invoke.MethodHandles.dropArguments;
+import static java.lang.invoke.MethodHandles.explicitCastArguments;
+import static java.lang.invoke.MethodHandles.filterArguments;
+import static java.lang.invoke.MethodHandles.filterReturnValue;
+import static java.lang.invoke.MethodHandles.foldArguments;
+import static java.lang.invoke.MethodHandles.identity;
+import static java.lang.invoke.MethodHandles.insertArguments;
+import static java.lang.invoke.MethodType.methodType;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.SwitchPoint;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * The shape of an {@link ExpandoObject}, the names of its properties, their representation
+ * and the slots where their values are stored.
+ *
+ * The hidden classes form a transition tree, like the maps of the V8 engine.
+ * A new expando object has a root hidden class with no property and adding a property
+ * to an expando object replaces its hidden class by a child of the current hidden class.
+ * Each hidden class stores its children in a concurrent map indexed by the property name,
+ * so the expando objects that get the same properties in the same order share the same hidden classes
+ * whatever the thread that creates them, while adding the same properties in a different order
+ * leads to a different hidden class.
+ *
+ * A property which is an int, a long or a double when it is introduced is stored unboxed
+ * in the array of primitive values of the expando object, the other properties are stored
+ * in the stash, an array of objects. If a value of another type is later stored in a primitive property,
+ * the expando object changes to a generalized hidden class in which the property is stored in the stash.
+ *
+ * A child shares the properties of its parent, so a property has the same slot in all the descendants
+ * of the hidden class that introduces it.
+ *
+ * The arrays of an expando object may be bigger than the number of slots used, they grow geometrically
+ * and the root hidden class records the biggest number of slots reached by the objects created with it,
+ * so the next objects are created with arrays of the expected size.
+ *
+ * Hidden classes are thread safe, the expando objects are not.
+ */
+public final class HiddenClass {
+  private static final Object[] EMPTY_STASH = new Object[0];
+  private static final long[] EMPTY_PRIMITIVES = new long[0];
+
+  final HiddenClass root;                        // the hidden class of the new expando objects
+  final HashMap<String, Property> propertyMap;   // never modified once the hidden class is created
+  final int objectCount;                         // number of slots used in the stash
+  final int primitiveCount;                      // number of slots used in the primitive values
+  private final ConcurrentHashMap<String, HiddenClass> transitions = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, HiddenClass> generalizations = new ConcurrentHashMap<>();
+  private volatile int expectedObjectCount;      // only used by a root
+  private volatile int expectedPrimitiveCount;   // only used by a root
+
+  private HiddenClass(HiddenClass root, HashMap<String, Property> propertyMap, int objectCount, int primitiveCount) {
+    this.root = (root == null)? this: root;
+    this.propertyMap = propertyMap;
+    this.objectCount = objectCount;
+    this.primitiveCount = primitiveCount;
+  }
+
+  /**
+   * Creates a root hidden class, with no property.
+   */
+  HiddenClass() {
+    this(null, new HashMap<String, Property>(), 0, 0);
+  }
+
+  /**
+   * Returns a new stash for an expando object created with this root hidden class.
+   */
+  Object[] newStash() {
+    int size = expectedObjectCount;
+    return (size == 0)? EMPTY_STASH: new Object[size];
+  }
+
+  /**
+   * Returns new primitive values for an expando object created with this root hidden class.
+   */
+  long[] newPrimitives() {
+    int size = expectedPrimitiveCount;
+    return (size == 0)? EMPTY_PRIMITIVES: new long[size];
+  }
+
+  /**
+   * Records that an expando object created with this root hidden class uses the slots of {@code hiddenClass}.
+   * The updates are not atomic, losing one only means that an array will grow.
+   */
+  private void expect(HiddenClass hiddenClass) {
+    if (hiddenClass.objectCount > expectedObjectCount) {
+      expectedObjectCount = hiddenClass.objectCount;
+    }
+    if (hiddenClass.primitiveCount > expectedPrimitiveCount) {
+      expectedPrimitiveCount = hiddenClass.primitiveCount;
+    }
+  }
+
+  /**
+   * Returns the names of the properties in the order of their introduction.
+   * @return an unmodifiable list of the property names.
+   */
+  public List<String> propertyNames() {
+    String[] names = new String[propertyMap.size()];
+    for(Map.Entry<String, Property> entry: propertyMap.entrySet()) {
+      names[entry.getValue().index] = entry.getKey();
+    }
+    return Collections.unmodifiableList(Arrays.asList(names));
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder builder = new StringBuilder("{");
+    String separator = "";
+    for(String name: propertyNames()) {
+      builder.append(separator).append(name);
+      Class<?> type = propertyMap.get(name).type;
+      if (type != Object.class) {
+        builder.append(':').append(type.getName());
+      }
+      separator = ",";
+    }
+    return builder.append('}').toString();
+  }
+
+  /**
+   * Returns the hidden class that has the properties of the current hidden class
+   * and the property {@code name} able to store a value of type {@code kind}.
+   * Only the first expando object that adds the property {@code name} to the current hidden class
+   * creates a new hidden class, so the representation of the property is chosen by this object.
+   */
+  HiddenClass transition(String name, Class<?> kind) {
+    HiddenClass child = transitions.get(name);
+    if (child == null) {
+      HashMap<String, Property> childPropertyMap = new HashMap<>(propertyMap);
+      int index = propertyMap.size();
+      HiddenClass newChild;
+      if (kind == Object.class) {
+        childPropertyMap.put(name, new Property(index, Object.class, objectCount));
+        newChild = new HiddenClass(root, childPropertyMap, objectCount + 1, primitiveCount);
+      } else {
+        childPropertyMap.put(name, new Property(index, kind, primitiveCount));
+        newChild = new HiddenClass(root, childPropertyMap, objectCount, primitiveCount + 1);
+      }
+      child = transitions.putIfAbsent(name, newChild);
+      if (child == null) {
+        child = newChild;
+      }
+    }
+    return child.propertyMap.get(name).accept(kind)? child: child.generalize(name);
+  }
+
+  /**
+   * Returns the hidden class that has the properties of the current hidden class
+   * but with the primitive property {@code name} stored in the stash.
+   * The primitive slot of the property is not reused.
+   */
+  HiddenClass generalize(String name) {
+    HiddenClass generalized = generalizations.get(name);
+    if (generalized != null) {
+      return generalized;
+    }
+    HashMap<String, Property> generalizedPropertyMap = new HashMap<>(propertyMap);
+    Property property = propertyMap.get(name);
+    generalizedPropertyMap.put(name, new Property(property.index, Object.class, objectCount));
+    generalized = new HiddenClass(root, generalizedPropertyMap, objectCount + 1, primitiveCount);
+    HiddenClass previous = generalizations.putIfAbsent(name, generalized);
+    return (previous != null)? previous: generalized;
+  }
+
+  MethodHandle call(Object[] stash, long[] primitives, String propertyName) {
+    return asMethod(getProperty(stash, primitives, propertyName), propertyName);
+  }
+
+  static MethodHandle asMethod(Object value, String propertyName) {
+    if (!(value instanceof MethodHandle)) {
+      throw new NoSuchMethodError(propertyName);
+    }
+    return (MethodHandle)value;
+  }
+
+  Object getProperty(Object[] stash, long[] primitives, String propertyName) {
+    Property property = propertyMap.get(propertyName);
+    if (property == null) {
+      return null;
+    }
+    return property.get(stash, primitives);
+  }
+
+  /**
+   * Set the value of a property, {@code updater} of type (Object proxy, HiddenClass hiddenClass, Object[] stash, long[] primitives)void
+   * changes the fields of the proxy if the hidden class changes.
+   */
+  static void setProperty(Object proxy, HiddenClass hiddenClass, Object[] stash, long[] primitives, MethodHandle updater, String propertyName, Object value) throws Throwable {
+    Property property = hiddenClass.propertyMap.get(propertyName);
+    if (property != null && property.accept(kind(value))) { // fast path
+      property.set(stash, primitives, value);
+      return;
+    }
+    HiddenClass newHiddenClass = (property == null)?
+        hiddenClass.transition(propertyName, kind(value)):
+        hiddenClass.generalize(propertyName);
+    newHiddenClass.root.expect(newHiddenClass);
+    Object[] newStash = (newHiddenClass.objectCount > stash.length)?
+        Arrays.copyOf(stash, Math.max(newHiddenClass.objectCount, 2 * stash.length)): stash;
+    long[] newPrimitives = (newHiddenClass.primitiveCount > primitives.length)?
+        Arrays.copyOf(primitives, Math.max(newHiddenClass.primitiveCount, 2 * primitives.length)): primitives;
+    newHiddenClass.propertyMap.get(propertyName).set(newStash, newPrimitives, value);
+    updater.invokeExact(proxy, newHiddenClass, newStash, newPrimitives);
+  }
+
+  /**
+   * Returns the representation of a value, int.class, long.class, double.class or Object.class.
+   */
+  static Class<?> kind(Object value) {
+    if (value instanceof Integer) {
+      return int.class;
+    }
+    if (value instanceof Long) {
+      return long.class;
+    }
+    if (value instanceof Double) {
+      return double.class;
+    }
+    return Object.class;
+  }
+
+  /**
+   * Returns the representation of the values of type {@code type}, int.class, long.class, double.class or Object.class.
+   */
+  static Class<?> kind(Class<?> type) {
+    return (type == int.class || type == long.class || type == double.class)? type: Object.class;
+  }
+
+  /**
+   * A property, its representation and its slot in the stash or in the primitive values.
+   *
+   * A property stored in the stash is constant while all the expando objects that have the property
+   * store the same value in it, a method stored in a constant property can be inlined by the call sites
+   * using the {@link #methodSwitchPoint() method switch point} of the property.
+   * The first write of another value marks the property as volatile, the method switch point is then
+   * invalidated if a call site has used it, and the call sites use an indirect call.
+   * A property never becomes constant again because other expando objects may still contain the old value,
+   * so changing the value of a property costs at most one invalidation and writing a data property none.
+   */
+  static final class Property {
+    private static final Object UNSET = new Object();
+
+    final int index;        // order of introduction
+    final Class<?> type;    // int.class, long.class, double.class or Object.class
+    final int slot;
+    private volatile Object constant = UNSET;   // the value stored by all the expando objects
+    private volatile boolean isVolatile;        // true if two different values were stored
+    private volatile SwitchPoint methodSwitchPoint;  // null until a call site inlines the method
+
+    Property(int index, Class<?> type, int slot) {
+      this.index = index;
+      this.type = type;
+      this.slot = slot;
+    }
+
+    /**
+     * Returns the constant value of the property or null if the property is volatile.
+     */
+    Object constant() {
+      return isVolatile? null: constant;
+    }
+
+    /**
+     * Returns a switch point that stays valid until the property becomes volatile.
+     * The caller must check that the property is not volatile after having called this method.
+     */
+    SwitchPoint methodSwitchPoint() {
+      SwitchPoint switchPoint = methodSwitchPoint;
+      if (switchPoint == null) {
+        switchPoint = new SwitchPoint();
+        if (!METHOD_SWITCH_POINT.compareAndSet(this, null, switchPoint)) {
+          switchPoint = methodSwitchPoint;
+        }
+      }
+      return switchPoint;
+    }
+
+    /**
+     * Called each time a value is stored in a property stored in the stash.
+     */
+    void observe(Object value) {
+      if (isVolatile) {
+        return;
+      }
+      Object constant = this.constant;
+      if (constant == value || (constant == UNSET && CONSTANT.compareAndSet(this, UNSET, value)) || this.constant == value) {
+        return;
+      }
+      isVolatile = true;
+      SwitchPoint switchPoint = methodSwitchPoint;  // read after isVolatile is set, see methodSwitchPoint()
+      if (switchPoint != null) {
+        SwitchPoint.invalidateAll(new SwitchPoint[] { switchPoint });
+      }
+    }
+
+    boolean accept(Class<?> kind) {
+      return type == Object.class || type == kind;
+    }
+
+    Object get(Object[] stash, long[] primitives) {
+      if (type == Object.class) {
+        return stash[slot];
+      }
+      long value = primitives[slot];
+      if (type == int.class) {
+        return (int)value;
+      }
+      if (type == long.class) {
+        return value;
+      }
+      return Double.longBitsToDouble(value);
+    }
+
+    void set(Object[] stash, long[] primitives, Object value) {
+      if (type == Object.class) {
+        stash[slot] = value;
+        observe(value);
+        return;
+      }
+      primitives[slot] = (type == double.class)? Double.doubleToRawLongBits((Double)value): ((Number)value).longValue();
+    }
+
+    /**
+     * Returns a method handle of type (Object proxy, HiddenClass hiddenClass, Object[] stash, long[] primitives)returnType.
+     * If the property is primitive and {@code returnType} is another type,
+     * the value is boxed and then converted to {@code returnType}.
+     */
+    MethodHandle getter(Class<?> returnType) {
+      MethodHandle getter;
+      if (type == Object.class) {
+        getter = insertArguments(arrayElementGetter(Object[].class), 1, slot);
+        getter = dropArguments(getter, 1, long[].class);
+      } else {
+        getter = insertArguments(arrayElementGetter(long[].class), 1, slot);
+        getter = filterReturnValue(getter, decoder(type));
+        getter = dropArguments(getter, 0, Object[].class);
+        if (returnType != type) {
+          getter = getter.asType(getter.type().changeReturnType(Object.class));
+        }
+      }
+      getter = dropArguments(getter, 0, Object.class, HiddenClass.class);
+      return getter.asType(getter.type().changeReturnType(returnType));
+    }
+
+    /**
+     * Returns a method handle of type (Object proxy, HiddenClass hiddenClass, Object[] stash, long[] primitives, valueType value)void.
+     * If the property is primitive, the value must be of the same representation.
+     */
+    MethodHandle setter(Class<?> valueType) {
+      MethodHandle setter;
+      if (type == Object.class) {
+        setter = insertArguments(arrayElementSetter(Object[].class), 1, slot);
+        setter = dropArguments(setter, 1, long[].class);
+        if (!isVolatile) {
+          setter = foldArguments(setter, dropArguments(OBSERVE.bindTo(this), 0, Object[].class, long[].class));
+        }
+      } else {
+        setter = insertArguments(arrayElementSetter(long[].class), 1, slot);
+        setter = filterArguments(setter, 1, encoder(type));
+        setter = dropArguments(setter, 0, Object[].class);
+      }
+      setter = dropArguments(setter, 0, Object.class, HiddenClass.class);
+      return setter.asType(setter.type().changeParameterType(4, valueType));
+    }
+
+    private static MethodHandle decoder(Class<?> type) {
+      if (type == double.class) {
+        return LONG_BITS_TO_DOUBLE;
+      }
+      return explicitCastArguments(identity(long.class), methodType(type, long.class));
+    }
+
+    private static MethodHandle encoder(Class<?> type) {
+      if (type == double.class) {
+        return DOUBLE_TO_RAW_LONG_BITS;
+      }
+      return identity(long.class).asType(methodType(long.class, type));
+    }
+
+    private static final AtomicReferenceFieldUpdater<Property, Object> CONSTANT =
+        AtomicReferenceFieldUpdater.newUpdater(Property.class, Object.class, "constant");
+    private static final AtomicReferenceFieldUpdater<Property, SwitchPoint> METHOD_SWITCH_POINT =
+        AtomicReferenceFieldUpdater.newUpdater(Property.class, SwitchPoint.class, "methodSwitchPoint");
+    private static final MethodHandle OBSERVE, LONG_BITS_TO_DOUBLE, DOUBLE_TO_RAW_LONG_BITS;
+    static {
+      Lookup lookup = MethodHandles.lookup();
+      try {
+        OBSERVE = lookup.findVirtual(Property.class, "observe", methodType(void.class, Object.class));
+        LONG_BITS_TO_DOUBLE = lookup.findStatic(Double.class, "longBitsToDouble", methodType(double.class, long.class));
+        DOUBLE_TO_RAW_LONG_BITS = lookup.findStatic(Double.class, "doubleToRawLongBits", methodType(long.class, double.class));
+      } catch (NoSuchMethodException | IllegalAccessException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  static final MethodHandle GET_PROPERTY, CALL, AS_METHOD, SET_PROPERTY;
+  static {
+    Lookup lookup = MethodHandles.lookup();
+    try {
+      GET_PROPERTY = lookup.findVirtual(HiddenClass.class, "getProperty",
+          methodType(Object.class, Object[].class, long[].class, String.class));
+      CALL = lookup.findVirtual(HiddenClass.class, "call",
+          methodType(MethodHandle.class, Object[].class, long[].class, String.class));
+      AS_METHOD = lookup.findStatic(HiddenClass.class, "asMethod",
+          methodType(MethodHandle.class, Object.class, String.class));
+      SET_PROPERTY = lookup.findStatic(HiddenClass.class, "setProperty",
+          methodType(void.class, Object.class, HiddenClass.class, Object[].class, long[].class, MethodHandle.class, String.class, Object.class));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,224 @@
+package com.github.forax.proxy2;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import com.github.forax.proxy2.Proxy2.Intrinsic;
+
+/**
+ * Generate the bytecode of the proxy methods implemented by an {@link Intrinsic}.
+ *
+ * The generated code has the same semantics as the method handles of {@link ObjectMethods}.
+ */
+class IntrinsicGenerator {
+  private IntrinsicGenerator() {
+    // no instance
+  }
+
+  private static final String HASH_FIELD = "hash";
+
+  /**
+   * Generate the code of a method.
+   * @param writer the writer of the proxy class, used to add fields if necessary.
+   * @param mv the visitor of the method, the method is ended by this call.
+   * @param method the method implemented.
+   * @param intrinsic the implementation of the method.
+   * @param proxyName the internal name of the proxy class.
+   * @param methodType the types of the fields as parameter types.
+   * @param mutables the mutability of the fields.
+   */
+  static void generate(ClassWriter writer, MethodVisitor mv, Method method, Intrinsic intrinsic, String proxyName, MethodType methodType, boolean[] mutables) {
+    mv.visitCode();
+    switch(intrinsic.kind) {
+    case VALUE_EQUALS:
+      valueEquals(mv, proxyName, methodType);
+      break;
+    case VALUE_HASH_CODE:
+      valueHashCode(mv, proxyName, methodType);
+      break;
+    case CACHED_VALUE_HASH_CODE:
+      if (isMutable(mutables)) {
+        valueHashCode(mv, proxyName, methodType);
+      } else {
+        cachedValueHashCode(writer, mv, proxyName, methodType);
+      }
+      break;
+    case DELEGATE:
+      delegate(mv, method, (intrinsic.target == null)? method: intrinsic.target, proxyName, intrinsic.fieldIndex, methodType.parameterType(intrinsic.fieldIndex));
+      break;
+    case RETURN_FIELD:
+      returnField(mv, method, proxyName, intrinsic.fieldIndex, methodType.parameterType(intrinsic.fieldIndex));
+      break;
+    default:
+      throw new AssertionError("unknown intrinsic " + intrinsic);
+    }
+    mv.visitMaxs(-1, -1);
+    mv.visitEnd();
+  }
+
+  private static boolean isMutable(boolean[] mutables) {
+    for(boolean mutable: mutables) {
+      if (mutable) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static void getField(MethodVisitor mv, int slot, String proxyName, int fieldIndex, Class<?> fieldType) {
+    mv.visitVarInsn(ALOAD, slot);
+    mv.visitFieldInsn(GETFIELD, proxyName, "arg" + fieldIndex, Type.getDescriptor(fieldType));
+  }
+
+  // the value of the field is on the stack
+  private static void convert(MethodVisitor mv, Class<?> from, Class<?> to) {
+    if (to == void.class) {
+      if (from != void.class) {
+        mv.visitInsn((from == long.class || from == double.class)? POP2: POP);
+      }
+      return;
+    }
+    if (!from.isPrimitive() && !to.isAssignableFrom(from)) {
+      mv.visitTypeInsn(CHECKCAST, Type.getInternalName(to));
+    }
+  }
+
+  private static void delegate(MethodVisitor mv, Method method, Method target, String proxyName, int fieldIndex, Class<?> fieldType) {
+    Class<?> owner = target.getDeclaringClass();
+    getField(mv, 0, proxyName, fieldIndex, fieldType);
+    convert(mv, fieldType, owner);
+    int slot = 1;
+    for(Class<?> parameterType: method.getParameterTypes()) {
+      mv.visitVarInsn(Type.getType(parameterType).getOpcode(ILOAD), slot);
+      slot += (parameterType == long.class || parameterType == double.class)? 2: 1;
+    }
+    mv.visitMethodInsn(owner.isInterface()? INVOKEINTERFACE: INVOKEVIRTUAL, Type.getInternalName(owner),
+        target.getName(), Type.getMethodDescriptor(target), owner.isInterface());
+    Class<?> returnType = method.getReturnType();
+    convert(mv, target.getReturnType(), returnType);
+    mv.visitInsn(Type.getType(returnType).getOpcode(IRETURN));
+  }
+
+  private static void returnField(MethodVisitor mv, Method method, String proxyName, int fieldIndex, Class<?> fieldType) {
+    Class<?> returnType = method.getReturnType();
+    getField(mv, 0, proxyName, fieldIndex, fieldType);
+    convert(mv, fieldType, returnType);
+    mv.visitInsn(Type.getType(returnType).getOpcode(IRETURN));
+  }
+
+  // proxy classes are final, so instanceof is a test of the class
+  private static void valueEquals(MethodVisitor mv, String proxyName, MethodType methodType) {
+    Label notEquals = new Label();
+    Label equals = new Label();
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitVarInsn(ALOAD, 1);
+    mv.visitJumpInsn(IF_ACMPEQ, equals);
+    mv.visitVarInsn(ALOAD, 1);
+    mv.visitTypeInsn(INSTANCEOF, proxyName);
+    mv.visitJumpInsn(IFEQ, notEquals);
+    mv.visitVarInsn(ALOAD, 1);
+    mv.visitTypeInsn(CHECKCAST, proxyName);
+    mv.visitVarInsn(ASTORE, 2);
+    for(int i = 0; i < methodType.parameterCount(); i++) {
+      Class<?> fieldType = methodType.parameterType(i);
+      getField(mv, 0, proxyName, i, fieldType);
+      getField(mv, 2, proxyName, i, fieldType);
+      if (!fieldType.isPrimitive()) {
+        mv.visitMethodInsn(INVOKESTATIC, "java/util/Objects", "equals", "(Ljava/lang/Object;Ljava/lang/Object;)Z", false);
+        mv.visitJumpInsn(IFEQ, notEquals);
+      } else if (fieldType == long.class) {
+        mv.visitInsn(LCMP);
+        mv.visitJumpInsn(IFNE, notEquals);
+      } else if (fieldType == float.class) {
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "compare", "(FF)I", false);
+        mv.visitJumpInsn(IFNE, notEquals);
+      } else if (fieldType == double.class) {
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "compare", "(DD)I", false);
+        mv.visitJumpInsn(IFNE, notEquals);
+      } else {  // boolean, byte, char, short, int
+        mv.visitJumpInsn(IF_ICMPNE, notEquals);
+      }
+    }
+    mv.visitLabel(equals);
+    mv.visitInsn(ICONST_1);
+    mv.visitInsn(IRETURN);
+    mv.visitLabel(notEquals);
+    mv.visitInsn(ICONST_0);
+    mv.visitInsn(IRETURN);
+  }
+
+  private static void valueHashCode(MethodVisitor mv, String proxyName, MethodType methodType) {
+    hash(mv, proxyName, methodType);
+    mv.visitInsn(IRETURN);
+  }
+
+  // like String.hashCode(), 0 means not yet computed, the field is racy but a thread can only see 0 or the hash
+  private static void cachedValueHashCode(ClassWriter writer, MethodVisitor mv, String proxyName, MethodType methodType) {
+    FieldVisitor fv = writer.visitField(ACC_PRIVATE, HASH_FIELD, "I", null, null);
+    fv.visitEnd();
+
+    Label computed = new Label();
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitFieldInsn(GETFIELD, proxyName, HASH_FIELD, "I");
+    mv.visitVarInsn(ISTORE, 1);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitJumpInsn(IFNE, computed);
+    hash(mv, proxyName, methodType);
+    mv.visitVarInsn(ISTORE, 1);
+    mv.visitVarInsn(ALOAD, 0);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitFieldInsn(PUTFIELD, proxyName, HASH_FIELD, "I");
+    mv.visitLabel(computed);
+    mv.visitVarInsn(ILOAD, 1);
+    mv.visitInsn(IRETURN);
+  }
+
+  // h = 31 * h + hash(field) for each field, starting with 1 like Arrays.hashCode(Object[])
+  private static void hash(MethodVisitor mv, String proxyName, MethodType methodType) {
+    mv.visitInsn(ICONST_1);
+    for(int i = 0; i < methodType.parameterCount(); i++) {
+      Class<?> fieldType = methodType.parameterType(i);
+      mv.visitIntInsn(BIPUSH, 31);
+      mv.visitInsn(IMUL);
+      getField(mv, 0, proxyName, i, fieldType);
+      if (!fieldType.isPrimitive()) {
+        mv.visitMethodInsn(INVOKESTATIC, "java/util/Objects", "hashCode", "(Ljava/lang/Object;)I", false);
+      } else if (fieldType == long.class) {
+        longHash(mv);
+      } else if (fieldType == float.class) {
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Float", "floatToIntBits", "(F)I", false);
+      } else if (fieldType == double.class) {
+        mv.visitMethodInsn(INVOKESTATIC, "java/lang/Double", "doubleToLongBits", "(D)J", false);
+        longHash(mv);
+      } else if (fieldType == boolean.class) {
+        Label isFalse = new Label();
+        Label end = new Label();
+        mv.visitJumpInsn(IFEQ, isFalse);
+        mv.visitIntInsn(SIPUSH, 1231);
+        mv.visitJumpInsn(GOTO, end);
+        mv.visitLabel(isFalse);
+        mv.visitIntInsn(SIPUSH, 1237);
+        mv.visitLabel(end);
+      }
+      // byte, char, short and int are their own hash
+      mv.visitInsn(IADD);
+    }
+  }
+
+  // (int)(value ^ (value >>> 32))
+  private static void longHash(MethodVisitor mv) {
+    mv.visitInsn(DUP2);
+    mv.visitIntInsn(BIPUSH, 32);
+    mv.visitInsn(LUSHR);
+    mv.visitInsn(LXOR);
+    mv.visitInsn(L2I);
+  }
+}
@@ -0,0 +1,227 @@
+package com.github.forax.proxy2;
+
+import java.lang.reflect.Method;
+
+/**
+ * The proxy, the method and the arguments of a call intercepted by an {@link UnboxedInvocationHandler}.
+ *
+ * The arguments are stored unboxed and must be read with the accessor corresponding
+ * to the parameter type, by example {@link #intArgument(int)} for an int.
+ * {@link #argument(int)} and {@link #arguments()} box the primitive arguments
+ * and are provided to ease the migration of code written for {@link java.lang.reflect.InvocationHandler}.
+ *
+ * The invocation objects are reused, an invocation object is only valid
+ * until the method of the {@link UnboxedInvocationHandler} that receives it returns,
+ * so it must not be stored nor shared with another thread.
+ */
+public final class Invocation {
+  private static final ThreadLocal<Invocation> INVOCATIONS = new ThreadLocal<Invocation>() {
+    @Override
+    protected Invocation initialValue() {
+      return new Invocation();
+    }
+  };
+
+  private Object proxy;
+  private Method method;
+  private int argumentCount;
+  private Object[] references = new Object[8];
+  private long[] primitives = new long[8];  // floats and doubles are stored as raw long bits
+  private boolean used;
+  private Invocation next;  // the invocation used by a call nested in the current call
+
+  private Invocation() {
+    // reused, see acquire()
+  }
+
+  /**
+   * Returns the proxy on which the method was called.
+   * @return the proxy on which the method was called.
+   */
+  public Object proxy() {
+    return proxy;
+  }
+
+  /**
+   * Returns the interface method called.
+   * @return the interface method called.
+   */
+  public Method method() {
+    return method;
+  }
+
+  /**
+   * Returns the number of arguments.
+   * @return the number of arguments.
+   */
+  public int argumentCount() {
+    return argumentCount;
+  }
+
+  private int checkIndex(int index) {
+    if (index < 0 || index >= argumentCount) {
+      throw new IndexOutOfBoundsException("index " + index + " argument count " + argumentCount);
+    }
+    return index;
+  }
+
+  /**
+   * Returns the argument at {@code index}, a reference or a boxed primitive value.
+   * @param index the index of the argument.
+   * @return the argument, boxed if the parameter type is a primitive type.
+   */
+  public Object argument(int index) {
+    Class<?> type = method.getParameterTypes()[checkIndex(index)];
+    if (!type.isPrimitive()) {
+      return references[index];
+    }
+    switch(type.getName()) {
+    case "boolean":
+      return booleanArgument(index);
+    case "byte":
+      return byteArgument(index);
+    case "char":
+      return charArgument(index);
+    case "short":
+      return shortArgument(index);
+    case "int":
+      return intArgument(index);
+    case "long":
+      return longArgument(index);
+    case "float":
+      return floatArgument(index);
+    case "double":
+      return doubleArgument(index);
+    default:
+      throw new AssertionError("unknown primitive type " + type);
+    }
+  }
+
+  /**
+   * Returns all the arguments in a newly allocated array, like {@link java.lang.reflect.InvocationHandler}.
+   * @return a new array containing the arguments, the primitive values are boxed.
+   */
+  public Object[] arguments() {
+    Object[] arguments = new Object[argumentCount];
+    for(int i = 0; i < arguments.length; i++) {
+      arguments[i] = argument(i);
+    }
+    return arguments;
+  }
+
+  /**
+   * Returns the argument at {@code index} which must be an object.
+   * @param index the index of the argument.
+   * @return the argument.
+   */
+  public Object objectArgument(int index) {
+    return references[checkIndex(index)];
+  }
+  /**
+   * Returns the argument at {@code index} which must be a boolean.
+   * @param index the index of the argument.
+   * @return the argument.
+   */
+  public boolean booleanArgument(int index) {
+    return primitives[checkIndex(index)] != 0;
+  }
+  /**
+   * Returns the argument at {@code index} which must be a byte.
+   * @param index the index of the argument.
+   * @return the argument.
+   */
+  public byte byteArgument(int index) {
+    return (byte)primitives[checkIndex(index)];
+  }
+  /**
+   * Returns the argument at {@code index} which must be a char.
+   * @param index the index of the argument.
+   * @return the argument.
+   */
+  public char charArgument(int index) {
+    return (char)primitives[checkIndex(index)];
+  }
+  /**
+   * Returns the argument at {@code index} which must be a short.
+   * @param index the index of the argument.
+   * @return the argument.
+   */
+  public short shortArgument(int index) {
+    return (short)primitives[checkIndex(index)];
+  }
+  /**
+   * Returns the argument at {@code index} which must be an int.
+   * @param index the index of the argument.
+   * @return the argument.
+   */
+  public int intArgument(int index) {
+    return (int)primitives[checkIndex(index)];
+  }
+  /**
+   * Returns the argument at {@code index} which must be a long.
+   * @param index the index of the argument.
+   * @return the argument.
+   */
+  public long longArgument(int index) {
+    return primitives[checkIndex(index)];
+  }
+  /**
+   * Returns the argument at {@code index} which must be a float.
+   * @param index the index of the argument.
+   * @return the argument.
+   */
+  public float floatArgument(int index) {
+    return (float)doubleArgument(index);
+  }
+  /**
+   * Returns the argument at {@code index} which must be a double.
+   * @param index the index of the argument.
+   * @return the argument.
+   */
+  public double doubleArgument(int index) {
+    return Double.longBitsToDouble(primitives[checkIndex(index)]);
+  }
+
+  // called by the proxy methods through method handles, see UnboxedInvocationHandler
+
+  static Invocation acquire(Object proxy, Method method, int argumentCount) {
+    Invocation invocation = INVOCATIONS.get();
+    while(invocation.used) {  // nested call
+      if (invocation.next == null) {
+        invocation.next = new Invocation();
+      }
+      invocation = invocation.next;
+    }
+    invocation.used = true;
+    invocation.proxy = proxy;
+    invocation.method = method;
+    invocation.argumentCount = argumentCount;
+    if (argumentCount > invocation.references.length) {
+      invocation.references = new Object[argumentCount];
+      invocation.primitives = new long[argumentCount];
+    }
+    return invocation;
+  }
+
+  void release() {
+    proxy = null;
+    method = null;  // don't prevent the interface to be unloaded
+    for(int i = 0; i < argumentCount; i++) {  // don't retain the arguments
+      references[i] = null;
+    }
+    used = false;
+  }
+
+  static void storeObject(Invocation invocation, int index, Object value) {
+    invocation.references[index] = value;
+  }
+  static void storeBoolean(Invocation invocation, int index, boolean value) {
+    invocation.primitives[index] = value? 1: 0;
+  }
+  static void storeLong(Invocation invocation, int index, long value) {  // also byte, char, short and int
+    invocation.primitives[index] = value;
+  }
+  static void storeDouble(Invocation invocation, int index, double value) {  // also float
+    invocation.primitives[index] = Double.doubleToRawLongBits(value);
+  }
+}
@@ -0,0 +1,180 @@
+package com.github.forax.proxy2;
+
+import java.lang.reflect.Method;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A {@link ProxyMonitor} that emits the events as Java Flight Recorder events,
+ * the events are only created if they are enabled in the current recording.
+ * <pre>
+ *   JFRProxyMonitor.install();  // install the monitor
+ *   ...
+ *   $ jcmd pid JFR.start
+ * </pre>
+ * This class requires a runtime that provides the module jdk.jfr (Java 11 or 8u262),
+ * the other classes of proxy2 doesn't depend on it.
+ *
+ * A JFR monitor can forward the events to another monitor, by example a {@link JMXProxyMonitor},
+ * to get both the counters and the events.
+ */
+public class JFRProxyMonitor implements ProxyMonitor {
+  private final ProxyMonitor next;
+
+  /**
+   * Create a monitor that emits JFR events, the monitor is not installed.
+   * @param next a monitor that also receives the events or null.
+   *
+   * @see #install()
+   */
+  public JFRProxyMonitor(ProxyMonitor next) {
+    this.next = next;
+  }
+
+  /**
+   * Create a monitor that emits JFR events and install it as the monitor of {@link Proxy2}.
+   * @return the newly installed monitor.
+   *
+   * @see Proxy2#setMonitor(ProxyMonitor)
+   */
+  public static JFRProxyMonitor install() {
+    JFRProxyMonitor monitor = new JFRProxyMonitor(null);
+    Proxy2.setMonitor(monitor);
+    return monitor;
+  }
+
+  @Name("com.github.forax.proxy2.TemplateGenerated")
+  @Label("Proxy Template Generated")
+  @Category("Proxy2")
+  @Description("The bytecode of a proxy class is generated")
+  static final class TemplateGeneratedEvent extends Event {
+    @Label("Interface")
+    Class<?> interfaze;
+    @Label("Bytecode Size")
+    @DataAmount
+    int byteCount;
+  }
+
+  @Name("com.github.forax.proxy2.ProxyClassDefined")
+  @Label("Proxy Class Defined")
+  @Category("Proxy2")
+  @Description("A proxy class is defined")
+  static final class ProxyClassDefinedEvent extends Event {
+    @Label("Interface")
+    Class<?> interfaze;
+    @Label("Proxy Class")
+    Class<?> proxyClass;
+    @Label("Bytecode Size")
+    @DataAmount
+    int byteCount;
+  }
+
+  @Name("com.github.forax.proxy2.MethodLinked")
+  @Label("Proxy Method Linked")
+  @Category("Proxy2")
+  @Description("A proxy method is linked by the bootstrap method of its handler")
+  static final class MethodLinkedEvent extends Event {
+    @Label("Declaring Class")
+    Class<?> declaringClass;
+    @Label("Method")
+    String method;
+    @Label("Bootstrap Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long bootstrapNanos;
+  }
+
+  @Name("com.github.forax.proxy2.InliningCacheUpdated")
+  @Label("Inlining Cache Updated")
+  @Category("Proxy2")
+  @Description("An inlining cache of MethodBuilder.unreflect sees a new receiver class")
+  static final class InliningCacheUpdatedEvent extends Event {
+    @Label("Method")
+    String method;
+    @Label("Receiver Class")
+    Class<?> receiverClass;
+    @Label("Receiver Class Count")
+    int receiverClassCount;
+  }
+
+  @Name("com.github.forax.proxy2.InliningCacheMegamorphic")
+  @Label("Inlining Cache Megamorphic")
+  @Category("Proxy2")
+  @Description("An inlining cache of MethodBuilder.unreflect sees too many receiver classes")
+  static final class InliningCacheMegamorphicEvent extends Event {
+    @Label("Method")
+    String method;
+  }
+
+  @Override
+  public void templateGenerated(Class<?> interfaze, int byteCount) {
+    TemplateGeneratedEvent event = new TemplateGeneratedEvent();
+    if (event.shouldCommit()) {
+      event.interfaze = interfaze;
+      event.byteCount = byteCount;
+      event.commit();
+    }
+    if (next != null) {
+      next.templateGenerated(interfaze, byteCount);
+    }
+  }
+
+  @Override
+  public void proxyClassDefined(Class<?> interfaze, Class<?> proxyClass, int byteCount) {
+    ProxyClassDefinedEvent event = new ProxyClassDefinedEvent();
+    if (event.shouldCommit()) {
+      event.interfaze = interfaze;
+      event.proxyClass = proxyClass;
+      event.byteCount = byteCount;
+      event.commit();
+    }
+    if (next != null) {
+      next.proxyClassDefined(interfaze, proxyClass, byteCount);
+    }
+  }
+
+  @Override
+  public void methodLinked(Method method, long nanos) {
+    MethodLinkedEvent event = new MethodLinkedEvent();
+    if (event.shouldCommit()) {
+      event.declaringClass = method.getDeclaringClass();
+      event.method = method.toString();
+      event.bootstrapNanos = nanos;
+      event.commit();
+    }
+    if (next != null) {
+      next.methodLinked(method, nanos);
+    }
+  }
+
+  @Override
+  public void inliningCacheUpdated(Method method, Class<?> receiverClass, int receiverClassCount) {
+    InliningCacheUpdatedEvent event = new InliningCacheUpdatedEvent();
+    if (event.shouldCommit()) {
+      event.method = method.toString();
+      event.receiverClass = receiverClass;
+      event.receiverClassCount = receiverClassCount;
+      event.commit();
+    }
+    if (next != null) {
+      next.inliningCacheUpdated(method, receiverClass, receiverClassCount);
+    }
+  }
+
+  @Override
+  public void inliningCacheMegamorphic(Method method) {
+    InliningCacheMegamorphicEvent event = new InliningCacheMegamorphicEvent();
+    if (event.shouldCommit()) {
+      event.method = method.toString();
+      event.commit();
+    }
+    if (next != null) {
+      next.inliningCacheMegamorphic(method);
+    }
+  }
+}
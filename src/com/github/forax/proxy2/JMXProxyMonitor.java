@@ -0,0 +1,202 @@
+package com.github.forax.proxy2;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * A {@link ProxyMonitor} that aggregates the events as counters exposed as a JMX MXBean.
+ * <pre>
+ *   JMXProxyMonitor.install();  // register the MXBean and install the monitor
+ * </pre>
+ */
+public class JMXProxyMonitor implements ProxyMonitor, ProxyStatsMXBean {
+  /**
+   * The name of the MXBean registered by {@link JMXProxyMonitor#install()}.
+   */
+  public static final String OBJECT_NAME = "com.github.forax.proxy2:type=ProxyMonitor";
+
+  private final AtomicLong generatedTemplateCount = new AtomicLong();
+  private final AtomicLong generatedByteCount = new AtomicLong();
+  private final AtomicLong definedProxyClassCount = new AtomicLong();
+  private final AtomicLong linkedMethodCount = new AtomicLong();
+  private final AtomicLong totalBootstrapNanos = new AtomicLong();
+  private final AtomicLong maxBootstrapNanos = new AtomicLong();
+  private final AtomicLong inliningCacheUpdateCount = new AtomicLong();
+  private final AtomicLong megamorphicInliningCacheCount = new AtomicLong();
+
+  // the bootstrap times are stored by declaring class of the methods, so they are collected
+  // with the class, the declaring classes are tracked with weak references to enumerate them
+  private final ClassValue<ConcurrentHashMap<String, AtomicLong>> bootstrapNanosByMethod =
+      new ClassValue<ConcurrentHashMap<String, AtomicLong>>() {
+        @Override
+        protected ConcurrentHashMap<String, AtomicLong> computeValue(Class<?> declaringClass) {
+          expungeUnloadedClasses();
+          declaringClasses.put(new WeakReference<Class<?>>(declaringClass, unloadedQueue), Boolean.TRUE);
+          return new ConcurrentHashMap<>();
+        }
+      };
+  private final Map<Reference<Class<?>>, Boolean> declaringClasses = new ConcurrentHashMap<>();
+
+  // the proxy classes are tracked with weak references to not prevent their unloading
+  private final ReferenceQueue<Class<?>> unloadedQueue = new ReferenceQueue<>();
+  private final Map<Reference<Class<?>>, Boolean> liveProxyClasses = new ConcurrentHashMap<>();
+
+  /**
+   * Create a monitor, the monitor is neither registered as a MXBean nor installed.
+   *
+   * @see #install()
+   */
+  public JMXProxyMonitor() {
+    // empty
+  }
+
+  /**
+   * Create a monitor, register it in the platform MBean server with the name {@link #OBJECT_NAME}
+   * and install it as the monitor of {@link Proxy2}.
+   * @return the newly installed monitor.
+   * @throws IllegalStateException if the MXBean can not be registered.
+   *
+   * @see Proxy2#setMonitor(ProxyMonitor)
+   */
+  public static JMXProxyMonitor install() {
+    JMXProxyMonitor monitor = new JMXProxyMonitor();
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(monitor, new ObjectName(OBJECT_NAME));
+    } catch (JMException e) {
+      throw new IllegalStateException(e);
+    }
+    Proxy2.setMonitor(monitor);
+    return monitor;
+  }
+
+  @Override
+  public void templateGenerated(Class<?> interfaze, int byteCount) {
+    generatedTemplateCount.incrementAndGet();
+    generatedByteCount.addAndGet(byteCount);
+  }
+
+  @Override
+  public void proxyClassDefined(Class<?> interfaze, Class<?> proxyClass, int byteCount) {
+    definedProxyClassCount.incrementAndGet();
+    expungeUnloadedClasses();
+    liveProxyClasses.put(new WeakReference<Class<?>>(proxyClass, unloadedQueue), Boolean.TRUE);
+  }
+
+  @Override
+  public void methodLinked(Method method, long nanos) {
+    linkedMethodCount.incrementAndGet();
+    totalBootstrapNanos.addAndGet(nanos);
+    long max;
+    while((max = maxBootstrapNanos.get()) < nanos && !maxBootstrapNanos.compareAndSet(max, nanos)) {
+      // retry
+    }
+    ConcurrentHashMap<String, AtomicLong> nanosByMethod = bootstrapNanosByMethod.get(method.getDeclaringClass());
+    String key = method.toString();
+    AtomicLong counter = nanosByMethod.get(key);
+    if (counter == null) {
+      AtomicLong previous = nanosByMethod.putIfAbsent(key, counter = new AtomicLong());
+      counter = (previous != null)? previous: counter;
+    }
+    counter.addAndGet(nanos);
+  }
+
+  @Override
+  public void inliningCacheUpdated(Method method, Class<?> receiverClass, int receiverClassCount) {
+    inliningCacheUpdateCount.incrementAndGet();
+  }
+
+  @Override
+  public void inliningCacheMegamorphic(Method method) {
+    megamorphicInliningCacheCount.incrementAndGet();
+  }
+
+  private void expungeUnloadedClasses() {
+    Reference<? extends Class<?>> reference;
+    while((reference = unloadedQueue.poll()) != null) {
+      liveProxyClasses.remove(reference);
+      declaringClasses.remove(reference);
+    }
+  }
+
+  @Override
+  public long getGeneratedTemplateCount() {
+    return generatedTemplateCount.get();
+  }
+  @Override
+  public long getGeneratedByteCount() {
+    return generatedByteCount.get();
+  }
+  @Override
+  public long getDefinedProxyClassCount() {
+    return definedProxyClassCount.get();
+  }
+  @Override
+  public long getLiveProxyClassCount() {
+    expungeUnloadedClasses();
+    return liveProxyClasses.size();
+  }
+  @Override
+  public long getLinkedMethodCount() {
+    return linkedMethodCount.get();
+  }
+  @Override
+  public long getTotalBootstrapNanos() {
+    return totalBootstrapNanos.get();
+  }
+  @Override
+  public long getMaxBootstrapNanos() {
+    return maxBootstrapNanos.get();
+  }
+  @Override
+  public Map<String, Long> getBootstrapNanosByMethod() {
+    expungeUnloadedClasses();
+    HashMap<String, Long> map = new HashMap<>();
+    for(Reference<Class<?>> reference: declaringClasses.keySet()) {
+      Class<?> declaringClass = reference.get();
+      if (declaringClass == null) {
+        continue;
+      }
+      for(Map.Entry<String, AtomicLong> entry: bootstrapNanosByMethod.get(declaringClass).entrySet()) {
+        map.put(entry.getKey(), entry.getValue().get());
+      }
+    }
+    return Collections.unmodifiableMap(map);
+  }
+  @Override
+  public long getInliningCacheUpdateCount() {
+    return inliningCacheUpdateCount.get();
+  }
+  @Override
+  public long getMegamorphicInliningCacheCount() {
+    return megamorphicInliningCacheCount.get();
+  }
+
+  @Override
+  public void reset() {
+    generatedTemplateCount.set(0);
+    generatedByteCount.set(0);
+    definedProxyClassCount.set(0);
+    linkedMethodCount.set(0);
+    totalBootstrapNanos.set(0);
+    maxBootstrapNanos.set(0);
+    inliningCacheUpdateCount.set(0);
+    megamorphicInliningCacheCount.set(0);
+    for(Reference<Class<?>> reference: declaringClasses.keySet()) {
+      Class<?> declaringClass = reference.get();
+      if (declaringClass != null) {
+        bootstrapNanosByMethod.get(declaringClass).clear();
+      }
+    }
+  }
+}
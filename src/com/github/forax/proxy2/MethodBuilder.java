@@ -10,21 +10,50 @@ import java.lang.invoke.MutableCallSite;
 import java.lang.invoke.WrongMethodTypeException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import com.github.forax.proxy2.Proxy2.ProxyContext;
 
 /**
  * A builder-like class easing the creation of method handle-tree to specify
  * implementation of a method.
+ * 
+ * The builder records a structural description of the transformations, the method handle trees
+ * are stored in a cache indexed by this description and the target, so two builders
+ * with the same transformations share the same method handle tree.
+ * Only the trees described by immutable values (primitive values, strings, classes, method types and methods)
+ * are cached, a tree that inserts another kind of value is never shared.
+ * A tree that calls a method handle or a virtual method (that has its own inlining cache) takes
+ * the method handle or the inlining cache as first parameter, so only the binding is created for each call.
+ * The cache is stored in the class of the description that sees all the other classes,
+ * so it doesn't prevent a class loader to be reclaimed.
+ * The cache of a class is bounded, its size can be configured with the system property
+ * {@code com.github.forax.proxy2.methodBuilderCacheSize} (1024 by default, 0 to disable the cache).
  */
 public class MethodBuilder {
   private MethodType sig;
   private MHTransformer transformer;
+  private Step step;
   
+  /**
+   * Transforms a method handle, the {@code lead} first parameters of the method handle are not part
+   * of the signature of the method builder and are passed through the transformations unchanged.
+   */
   @FunctionalInterface
   interface MHTransformer {
-     MethodHandle transform(MethodHandle mh) throws NoSuchMethodException, NoSuchFieldException, IllegalAccessException;
+     MethodHandle transform(MethodHandle mh, int lead) throws NoSuchMethodException, NoSuchFieldException, IllegalAccessException;
+  }
+  
+  // the types of the parameters passed through the transformations
+  static List<Class<?>> leading(MethodHandle mh, int lead) {
+    return mh.type().parameterList().subList(0, lead);
   }
   
   /**
@@ -49,12 +78,230 @@ public class MethodBuilder {
     // use factory
   }
 
-  private MethodBuilder apply(MethodType sig, MHTransformer transformer) {
+  private MethodBuilder apply(MethodType sig, MHTransformer transformer, Object... parts) {
+    return apply(sig, transformer, new Step(step, parts, null, null));
+  }
+  
+  private MethodBuilder apply(MethodType sig, MHTransformer transformer, Step step) {
     this.sig = sig;
     this.transformer = transformer;
+    this.step = step;
     return this;
   }
   
+  /**
+   * A transformation recorded by a method builder, the kind of the transformation followed by its arguments.
+   * If the transformation is specified by a function, the method handle returned by the function
+   * is computed once, it is part of the description only if it comes from the cache,
+   * in that case, its own description is used.
+   */
+  private static final class Step {
+    final Step previous;
+    final Object[] parts;
+    private final Fun<? super MethodBuilder, ? extends MethodHandle> function;
+    private final MethodType functionType;
+    private MethodHandle functionResult;
+    private List<Object> functionDescription;
+    
+    Step(Step previous, Object[] parts, Fun<? super MethodBuilder, ? extends MethodHandle> function, MethodType functionType) {
+      this.previous = previous;
+      this.parts = parts;
+      this.function = function;
+      this.functionType = functionType;
+    }
+    
+    MethodHandle functionResult() throws NoSuchMethodException, NoSuchFieldException, IllegalAccessException {
+      MethodHandle functionResult = this.functionResult;
+      if (functionResult == null) {
+        MethodBuilder builder = methodBuilder(functionType);
+        functionResult = this.functionResult = function.apply(builder);
+        if (functionResult == builder.cachedTree) {
+          functionDescription = builder.cachedDescription;
+        }
+      }
+      return functionResult;
+    }
+  }
+  
+  private MethodBuilder applyFunction(MethodType sig, Fun<? super MethodBuilder, ? extends MethodHandle> function, MethodType functionType,
+                                      FunTransformer transformer, Object... parts) {
+    Step step = new Step(this.step, parts, function, functionType);
+    return apply(sig, (mh, lead) -> transformer.transform(mh, lead, step.functionResult()), step);
+  }
+  
+  @FunctionalInterface
+  interface FunTransformer {
+    MethodHandle transform(MethodHandle mh, int lead, MethodHandle functionResult) throws NoSuchMethodException, NoSuchFieldException, IllegalAccessException;
+  }
+  
+  // number of method handle trees in the cache of a class
+  static final int CACHE_SIZE = Integer.getInteger("com.github.forax.proxy2.methodBuilderCacheSize", 1024);
+  
+  // structural description -> method handle tree, the least recently used tree is evicted first.
+  // The cache is stored in a class of the description that can see all the other classes of the description,
+  // so the cache is reclaimed with that class and doesn't keep another class loader alive
+  private static final ClassValue<LinkedHashMap<List<Object>, MethodHandle>> CACHES =
+      new ClassValue<LinkedHashMap<List<Object>, MethodHandle>>() {
+        @Override
+        protected LinkedHashMap<List<Object>, MethodHandle> computeValue(Class<?> type) {
+          return new LinkedHashMap<List<Object>, MethodHandle>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, MethodHandle> eldest) {
+              return size() > CACHE_SIZE;
+            }
+          };
+        }
+      };
+  
+  // description and method handle tree of the last tree found or stored in the cache
+  private List<Object> cachedDescription;
+  private MethodHandle cachedTree;
+  
+  /**
+   * Returns the structural description of the transformations followed by the description of the target,
+   * the functions are called, the last transformation first like when the tree is built.
+   * Returns null if a part of the description is not an immutable value or if a function returns
+   * a method handle that doesn't come from the cache, the method handle tree can not be cached in that case.
+   */
+  private List<Object> description(Object... targetParts) throws NoSuchMethodException, NoSuchFieldException, IllegalAccessException {
+    ArrayList<Object> description = new ArrayList<>();
+    for(Step step = this.step; step != null; step = step.previous) {
+      if (!addAll(description, step.parts)) {
+        return null;
+      }
+      if (step.function != null) {
+        step.functionResult();
+        List<Object> functionDescription = step.functionDescription;
+        if (functionDescription == null) {
+          return null;
+        }
+        description.add(functionDescription);
+      }
+      description.add("|");  // end of step
+    }
+    if (!addAll(description, targetParts)) {
+      return null;
+    }
+    return description;
+  }
+  
+  private static boolean addAll(ArrayList<Object> description, Object[] parts) {
+    for(Object part: parts) {
+      if (!isImmutable(part)) {
+        return false;
+      }
+      description.add(part);
+    }
+    return true;
+  }
+  
+  // a value captured by a cached method handle tree can be shared, so it must be immutable
+  private static boolean isImmutable(Object value) {
+    return value == null || value instanceof String || value instanceof Integer || value instanceof Long ||
+        value instanceof Double || value instanceof Float || value instanceof Boolean || value instanceof Character ||
+        value instanceof Short || value instanceof Byte || value instanceof Class || value instanceof MethodType ||
+        value instanceof Method;
+  }
+  
+  /**
+   * Returns the class of the description that can see all the other classes of the description,
+   * the one with the deepest class loader, or null if two classes of the description are loaded
+   * by unrelated class loaders.
+   */
+  private static Class<?> scope(List<Object> description) {
+    ArrayList<Class<?>> classes = new ArrayList<>();
+    collectClasses(description, classes);
+    Class<?> scope = Object.class;
+    for(Class<?> clazz: classes) {
+      if (isAncestor(scope.getClassLoader(), clazz.getClassLoader())) {
+        scope = clazz;
+      }
+    }
+    ClassLoader loader = scope.getClassLoader();
+    for(Class<?> clazz: classes) {
+      if (!isAncestor(clazz.getClassLoader(), loader)) {
+        return null;
+      }
+    }
+    return scope;
+  }
+  
+  private static void collectClasses(List<?> description, ArrayList<Class<?>> classes) {
+    for(Object part: description) {
+      if (part instanceof Class) {
+        classes.add((Class<?>)part);
+      } else if (part instanceof MethodType) {
+        MethodType methodType = (MethodType)part;
+        classes.add(methodType.returnType());
+        classes.addAll(methodType.parameterList());
+      } else if (part instanceof Method) {
+        Method method = (Method)part;
+        classes.add(method.getDeclaringClass());
+        classes.add(method.getReturnType());
+        classes.addAll(Arrays.asList(method.getParameterTypes()));
+      } else if (part instanceof List) {
+        collectClasses((List<?>)part, classes);
+      }
+    }
+  }
+  
+  // true if ancestor is the class loader or one of its parents, null is the bootstrap class loader
+  private static boolean isAncestor(ClassLoader ancestor, ClassLoader loader) {
+    if (ancestor == null) {
+      return true;
+    }
+    for(ClassLoader parent = loader; parent != null; parent = parent.getParent()) {
+      if (parent == ancestor) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  /**
+   * Find the method handle tree in the cache or build it from the target returned by {@code targetFun}
+   * by applying all transformations.
+   * The tree is only cached if its description is only made of immutable values,
+   * so a cached tree never captures an object identity.
+   */
+  private MethodHandle cached(Fun<Void, MethodHandle> targetFun, int lead, Object... targetParts) throws NoSuchMethodException, NoSuchFieldException, IllegalAccessException {
+    List<Object> description = (CACHE_SIZE == 0)? null: description(targetParts);
+    Class<?> scope = (description == null)? null: scope(description);
+    if (scope == null) {
+      return transformer.transform(targetFun.apply(null), lead);
+    }
+    LinkedHashMap<List<Object>, MethodHandle> cache = CACHES.get(scope);
+    MethodHandle mh;
+    synchronized(cache) {
+      mh = cache.get(description);
+    }
+    if (mh == null) {
+      mh = transformer.transform(targetFun.apply(null), lead);
+      synchronized(cache) {
+        MethodHandle previous = cache.get(description);
+        if (previous != null) {  // built by another thread
+          mh = previous;
+        } else {
+          cache.put(description, mh);
+        }
+      }
+    }
+    cachedDescription = description;
+    cachedTree = mh;
+    return mh;
+  }
+  
+  /**
+   * Apply all transformations on a target that may capture an object or have a state, like an inlining cache.
+   * The cached tree calls the method handle taken as first parameter, it is shared by all the targets
+   * and only bound to the target.
+   */
+  private MethodHandle adapt(MethodHandle target) throws NoSuchMethodException, NoSuchFieldException, IllegalAccessException {
+    return cached(unused -> exactInvoker(sig), 1, "invoker").bindTo(target);
+  }
+  
   /**
    * Create a method builder with the signature of the implementation method should conform.
    * Typically, the MethodBuilder can be initialized using the {@link ProxyContext#type() type}
@@ -70,7 +317,7 @@ public class MethodBuilder {
    * @return a new method builder
    */
   public static MethodBuilder methodBuilder(MethodType methodType) {
-    return new MethodBuilder().apply(methodType, mh -> mh);
+    return new MethodBuilder().apply(methodType, (mh, lead) -> mh, "methodBuilder", methodType);
   }
   
   /**
@@ -80,7 +327,7 @@ public class MethodBuilder {
   public MethodBuilder boxAll() {
     MethodType sig = this.sig;
     MHTransformer transformer = this.transformer;
-    return apply(methodType(sig.returnType(), Object[].class), mh -> transformer.transform(mh.asCollector(Object[].class, sig.parameterCount()).asType(sig)));
+    return apply(methodType(sig.returnType(), Object[].class), (mh, lead) -> transformer.transform(mh.asCollector(Object[].class, sig.parameterCount()).asType(sig.insertParameterTypes(0, leading(mh, lead))), lead), "boxAll");
   }
   
   /**
@@ -93,7 +340,8 @@ public class MethodBuilder {
     MHTransformer transformer = this.transformer;
     return apply(methodType(sig.returnType(), sig.parameterList().subList(0, sig.parameterCount() - argumentCount))
                      .appendParameterTypes(Object[].class),
-                 mh -> transformer.transform(mh.asCollector(Object[].class, argumentCount).asType(sig)));
+                 (mh, lead) -> transformer.transform(mh.asCollector(Object[].class, argumentCount).asType(sig.insertParameterTypes(0, leading(mh, lead))), lead),
+                 "boxLast", argumentCount);
   }
   
   /**
@@ -105,7 +353,8 @@ public class MethodBuilder {
    */
   public <T> MethodBuilder insertAt(int parameterIndex, Class<T> type, T value) {
     MHTransformer transformer = this.transformer;
-    return apply(sig.insertParameterTypes(parameterIndex, type), mh -> transformer.transform(insertArguments(mh, parameterIndex, value)));
+    return apply(sig.insertParameterTypes(parameterIndex, type), (mh, lead) -> transformer.transform(insertArguments(mh, lead + parameterIndex, value), lead),
+        "insertAt", parameterIndex, type, value);
   }
   
   /**
@@ -126,7 +375,7 @@ public class MethodBuilder {
   public MethodBuilder dropAt(int parameterIndex) {
     Class<?> type = sig.parameterType(parameterIndex);
     MHTransformer transformer = this.transformer;
-    return apply(sig.dropParameterTypes(parameterIndex, parameterIndex + 1), mh -> transformer.transform(dropArguments(mh, parameterIndex, type)));
+    return apply(sig.dropParameterTypes(parameterIndex, parameterIndex + 1), (mh, lead) -> transformer.transform(dropArguments(mh, lead + parameterIndex, type), lead), "dropAt", parameterIndex);
   }
   
   /**
@@ -136,7 +385,7 @@ public class MethodBuilder {
   public MethodBuilder dropAll() {
     Class<?>[] types = sig.parameterArray();
     MHTransformer transformer = this.transformer;
-    return apply(methodType(sig.returnType()), mh -> transformer.transform(dropArguments(mh, 0, types)));
+    return apply(methodType(sig.returnType()), (mh, lead) -> transformer.transform(dropArguments(mh, lead, types), lead), "dropAll");
   }
   
   /**
@@ -153,7 +402,7 @@ public class MethodBuilder {
     }
     MHTransformer transformer = this.transformer;
     MethodType sig = this.sig;
-    return apply(methodType, mh -> transformer.transform(mh.asType(sig)));
+    return apply(methodType, (mh, lead) -> transformer.transform(mh.asType(sig.insertParameterTypes(0, leading(mh, lead))), lead), "convertTo", methodType);
   }
   
   /**
@@ -188,7 +437,7 @@ public class MethodBuilder {
   public MethodBuilder before(Fun<? super MethodBuilder, ? extends MethodHandle> function) {
     MethodType instrType = sig.changeReturnType(void.class);
     MHTransformer transformer = this.transformer;
-    return apply(sig, mh -> transformer.transform(foldArguments(mh, function.apply(methodBuilder(instrType)))));
+    return applyFunction(sig, function, instrType, (mh, lead, instr) -> transformer.transform(foldArguments(mh, dropArguments(instr, 0, leading(mh, lead))), lead), "before");
   }
   
   /**
@@ -203,7 +452,8 @@ public class MethodBuilder {
     Class<?> returnType = sig.returnType();
     MethodType instrType = (returnType == void.class)?sig: sig.insertParameterTypes(0, returnType);
     MHTransformer transformer = this.transformer;
-    return apply(sig, mh -> transformer.transform(foldArguments(function.apply(methodBuilder(instrType)), mh)));
+    return applyFunction(sig, function, instrType, (mh, lead, instr) -> transformer.transform(
+        foldArguments(dropArguments(instr, (returnType == void.class)? 0: 1, leading(mh, lead)), mh), lead), "after");
   }
   
   /**
@@ -217,21 +467,38 @@ public class MethodBuilder {
   public MethodBuilder trap(Class<? extends Throwable> exceptionType, Fun<? super MethodBuilder, ? extends MethodHandle> function) {
     MethodType instrType = sig.insertParameterTypes(0, exceptionType);
     MHTransformer transformer = this.transformer;
-    return apply(sig, mh -> transformer.transform(catchException(mh, exceptionType, function.apply(methodBuilder(instrType)))));
+    return applyFunction(sig, function, instrType, (mh, lead, handler) -> transformer.transform(catchException(mh, exceptionType, dropArguments(handler, 1, leading(mh, lead))), lead),
+        "trap", exceptionType);
   }
   
   
   public MethodBuilder compose(Class<?> returnType, Fun<? super MethodBuilder, ? extends MethodHandle> function) {
     MethodType instrType = sig.changeReturnType(returnType);
     MHTransformer transformer = this.transformer;
-    return apply(methodType(sig.returnType(), returnType), mh -> transformer.transform(filterReturnValue(function.apply(methodBuilder(instrType)), mh)));
+    return applyFunction(methodType(sig.returnType(), returnType), function, instrType,
+        (mh, lead, instr) -> transformer.transform(compose(mh, lead, instr), lead), "compose", returnType);
+  }
+  
+  // calls instr and then mh with the leading parameters followed by the return value of instr
+  private static MethodHandle compose(MethodHandle mh, int lead, MethodHandle instr) {
+    if (lead == 0) {
+      return filterReturnValue(instr, mh);
+    }
+    // (leading, returnValue) -> (returnValue, leading, parameters...)
+    MethodType mhType = mh.type();
+    int[] reorder = new int[lead + 1];
+    for(int i = 0; i < lead; i++) {
+      reorder[i] = i + 1;
+    }
+    MethodHandle target = permuteArguments(mh, mhType.dropParameterTypes(0, lead).insertParameterTypes(1, leading(mh, lead)), reorder);
+    return foldArguments(dropArguments(target, lead + 1, instr.type().parameterList()), dropArguments(instr, 0, leading(mh, lead)));
   }
   
   public MethodBuilder filter(int argumentIndex, Class<?> returnType, Fun<? super MethodBuilder, ? extends MethodHandle> function) {
     MethodType filterType = methodType(returnType, sig.parameterType(argumentIndex));
     MHTransformer transformer = this.transformer;
-    return apply(sig.changeParameterType(argumentIndex, returnType),
-        mh -> transformer.transform(filterArguments(mh, argumentIndex, function.apply(methodBuilder(filterType)))));
+    return applyFunction(sig.changeParameterType(argumentIndex, returnType), function, filterType,
+        (mh, lead, filter) -> transformer.transform(filterArguments(mh, lead + argumentIndex, filter), lead), "filter", argumentIndex, returnType);
   }
   
   public MethodBuilder filterLast(int argumentCount, Class<?> fromType, Class<?> toType, Fun<? super MethodBuilder, ? extends MethodHandle> function) {
@@ -244,12 +511,11 @@ public class MethodBuilder {
     Arrays.fill(parameterArray, firstArgument, parameterCount, toType);
     MethodType filterType = methodType(toType, fromType);
     MHTransformer transformer = this.transformer;  // must be get after the call to convertTo
-    return apply(methodType(returnType, parameterArray), mh -> { 
-          MethodHandle filter = function.apply(methodBuilder(filterType));
+    return applyFunction(methodType(returnType, parameterArray), function, filterType, (mh, lead, filter) -> { 
           MethodHandle[] filterArray = new MethodHandle[argumentCount];
           Arrays.fill(filterArray, filter);
-          return transformer.transform(filterArguments(mh, firstArgument, filterArray)); 
-        });
+          return transformer.transform(filterArguments(mh, lead + firstArgument, filterArray), lead); 
+        }, "filterLast", argumentCount, fromType, toType);
   }
   
   /**
@@ -266,13 +532,19 @@ public class MethodBuilder {
     if (!targetType.equals(sig)) {
       throw new WrongMethodTypeException("target type " + targetType + " is not equals to current type " + sig);
     }
-    return transformer.transform(target);
+    return adapt(target);
   }
   
   /**
    * Create a method handle that will apply all transformations specified by the current method builder
    * and then call the {@code method} method. 
-   * This method uses a cache if the method is a virtual method (either on class or interface)
+   * If the method is a virtual method, the receiver type of the current method builder can be a subtype
+   * of the class that declares the method.
+   * This method uses a cache if the method is a virtual method (either on class or interface),
+   * the number of receiver classes stored in the cache can be configured with the system property
+   * {@code com.github.forax.proxy2.polymorphismLimit} (8 by default).
+   * Each returned method handle has its own inlining cache, the method handle tree that calls
+   * the inlining cache is shared.
    * 
    * @param lookup the lookup object used to find the @code method}
    * @param method the method called at the end of the transformation.
@@ -282,17 +554,29 @@ public class MethodBuilder {
    * @throws IllegalAccessException throws if a type or a member of a type is not visible.
    */
   public MethodHandle unreflect(Lookup lookup, Method method) throws NoSuchMethodException, NoSuchFieldException, IllegalAccessException {
+    MethodHandle target = unreflectTarget(lookup, method);
+    int modifiers = method.getModifiers();
+    if (!Modifier.isStatic(modifiers) && !Modifier.isPrivate(modifiers)) { // can be virtual
+      // the inlining cache records the receiver classes, each method handle has its own
+      return adapt(new InliningCacheCallSite(method, target).dynamicInvoker());
+    }
+    // two lookups with the same lookup class and the same modes have the same access
+    return cached(unused -> target, 0, "unreflect", lookup.lookupClass(), lookup.lookupModes(), method);
+  }
+  
+  private MethodHandle unreflectTarget(Lookup lookup, Method method) throws IllegalAccessException {
     MethodHandle target = lookup.unreflect(method);
     MethodType targetType = target.type();
     if (!targetType.equals(sig)) {
-      throw new WrongMethodTypeException("target type " + targetType + " is not equals to current type " + sig);
-    }
-    
-    int modifiers = method.getModifiers();
-    if (!Modifier.isStatic(modifiers) && !Modifier.isPrivate(modifiers)) { // can be virtual
-      target = new InliningCacheCallSite(target).dynamicInvoker();
+      // a method of a supertype, like Object.toString(), can be called on a more specific receiver
+      if (Modifier.isStatic(method.getModifiers()) ||
+          !targetType.dropParameterTypes(0, 1).equals(sig.dropParameterTypes(0, 1)) ||
+          !targetType.parameterType(0).isAssignableFrom(sig.parameterType(0))) {
+        throw new WrongMethodTypeException("target type " + targetType + " is not equals to current type " + sig);
+      }
+      target = target.asType(sig);
     }
-    return call(target);
+    return target;
   }
   
   /**
@@ -305,7 +589,7 @@ public class MethodBuilder {
    * @throws IllegalAccessException throws if a type or a member of a type is not visible.
    */
   public MethodHandle callIdentity() throws NoSuchMethodException, NoSuchFieldException, IllegalAccessException {
-    return call(identity(sig.parameterType(0)).asType(sig));
+    return cached(unused -> identity(sig.parameterType(0)).asType(sig), 0, "callIdentity");
   }
   
   /**
@@ -317,31 +601,74 @@ public class MethodBuilder {
    * @throws IllegalAccessException throws if a type or a member of a type is not visible.
    */
   public MethodHandle callConstant(Object value) throws NoSuchMethodException, NoSuchFieldException, IllegalAccessException {
-    return call(constant(sig.parameterType(0), value));
+    MethodHandle target = constant(sig.parameterType(0), value);
+    MethodType targetType = target.type();
+    if (!targetType.equals(sig)) {
+      throw new WrongMethodTypeException("target type " + targetType + " is not equals to current type " + sig);
+    }
+    return cached(unused -> target, 0, "callConstant", value);
   }
   
+  /**
+   * A polymorphic inlining cache that checks the class of the receiver against the classes already seen.
+   * 
+   * The classes already seen are stored in an immutable array updated with a CAS, 
+   * the target is always rebuilt from the current array (under a lock, so two threads that
+   * update the array can not install their targets in the wrong order) and published with
+   * {@link MutableCallSite#syncAll(MutableCallSite[])}, the callsites relinked concurrently
+   * are published by the same call to syncAll, so a burst of first calls doesn't trigger one safepoint
+   * by callsite. A thread that sees a stale target goes to the fallback which finds the receiver class
+   * in the array.
+   * If more than {@link #MAX_KIND_OF_TYPE} classes are seen, the callsite is considered as megamorphic
+   * and is never relinked again, the target is a lookup in a dispatch table that stores,
+   * for each receiver class, the method handles already adapted to the receiver class.
+   * The dispatch table is shared by all the callsites that call the same method,
+   * so a receiver class seen by a callsite doesn't need to be adapted again by another one.
+   */
   static class InliningCacheCallSite extends MutableCallSite {
-    private static final int MAX_KIND_OF_TYPE = 8;  // number of kind of type before considering the callsite as megamorphic
-    private final static MethodHandle CLASS_CHECK, FALLBACK;
+    // number of kind of type before considering the callsite as megamorphic
+    static final int MAX_KIND_OF_TYPE = Integer.getInteger("com.github.forax.proxy2.polymorphismLimit", 8);
+    private static final Class<?>[] MEGAMORPHIC = new Class<?>[0];
+    @SuppressWarnings("unchecked")  // Class<?>[].class doesn't exist
+    private static final AtomicReferenceFieldUpdater<InliningCacheCallSite, Class<?>[]> RECEIVER_CLASSES =
+        AtomicReferenceFieldUpdater.newUpdater(InliningCacheCallSite.class, (Class<Class<?>[]>)(Class<?>)Class[].class, "receiverClasses");
+    // the callsites relinked but not yet published by syncAll
+    private static final ConcurrentLinkedQueue<MutableCallSite> UNSYNCED_CALLSITES = new ConcurrentLinkedQueue<>();
+    private final static MethodHandle CLASS_CHECK, FALLBACK, DISPATCH;
     static {
       Lookup lookup = lookup();
       Class<?> thisClass = lookup.lookupClass();
       try {
         CLASS_CHECK = lookup.findStatic(thisClass, "classCheck", methodType(boolean.class, Object.class, Class.class));
         FALLBACK = lookup.findStatic(thisClass, "fallback", methodType(MethodHandle.class, thisClass, Object.class));
+        DISPATCH = lookup.findStatic(thisClass, "dispatch", methodType(MethodHandle.class, thisClass, Object.class));
       } catch (NoSuchMethodException | IllegalAccessException e) {
         throw new AssertionError();
       }
     }
        
+    private final Method method;
     private final MethodHandle endPoint;
-    private int kindOfTypeCounter;   // the access are racy but we don't care ! 
+    private final MethodHandle fallback;
+    private volatile Class<?>[] receiverClasses = new Class<?>[0];  // MEGAMORPHIC if megamorphic
+    
+    // receiver class -> method -> end point adapted to the receiver class,
+    // the keys are supertypes of the receiver class so the table doesn't prevent class unloading
+    private static final ClassValue<ConcurrentHashMap<Method, MethodHandle>> DISPATCH_TABLE =
+        new ClassValue<ConcurrentHashMap<Method, MethodHandle>>() {
+          @Override
+          protected ConcurrentHashMap<Method, MethodHandle> computeValue(Class<?> receiverClass) {
+            return new ConcurrentHashMap<>();
+          }
+        };
 
-    InliningCacheCallSite(MethodHandle endPoint) {
+    InliningCacheCallSite(Method method, MethodHandle endPoint) {
       super(endPoint.type());
+      this.method = method;
       this.endPoint = endPoint;
       MethodType type = endPoint.type();
-      setTarget(foldArguments(exactInvoker(type), FALLBACK.bindTo(this).asType(methodType(MethodHandle.class, type.parameterType(0)))));
+      fallback = foldArguments(exactInvoker(type), FALLBACK.bindTo(this).asType(methodType(MethodHandle.class, type.parameterType(0))));
+      setTarget(fallback);
     }
     
     @SuppressWarnings("unused")  // used by a method handle
@@ -349,25 +676,117 @@ public class MethodBuilder {
       return receiver.getClass() == receiverClass;
     }
     
+    /**
+     * Returns the end point with a cast to the receiver class to help the JIT.
+     */
+    MethodHandle target(Class<?> receiverClass) {
+      MethodType endPointType = endPoint.type();
+      return endPoint.asType(endPointType.changeParameterType(0, receiverClass)).asType(endPointType);
+    }
+    
+    private MethodHandle polymorphicTarget(Class<?>[] receiverClasses) {
+      MethodType endPointType = endPoint.type();
+      MethodHandle target = fallback;
+      for(Class<?> receiverClass: receiverClasses) {
+        MethodHandle test = insertArguments(CLASS_CHECK, 1, receiverClass).asType(methodType(boolean.class, endPointType.parameterType(0)));
+        target = guardWithTest(test, target(receiverClass), target);
+      }
+      return target;
+    }
+    
+    private MethodHandle megamorphicTarget() {
+      MethodType type = endPoint.type();
+      return foldArguments(exactInvoker(type), DISPATCH.bindTo(this).asType(methodType(MethodHandle.class, type.parameterType(0))));
+    }
+    
+    private MethodHandle dispatchTarget(Class<?> receiverClass) {
+      ConcurrentHashMap<Method, MethodHandle> table = DISPATCH_TABLE.get(receiverClass);
+      MethodHandle target = table.get(method);
+      if (target != null) {
+        // a protected method unreflected by another lookup may have another receiver type
+        return target.type().equals(endPoint.type())? target: target(receiverClass);
+      }
+      target = target(receiverClass);
+      table.putIfAbsent(method, target);
+      return target;
+    }
+    
+    private void relink() {
+      synchronized(this) {
+        Class<?>[] receiverClasses = this.receiverClasses;
+        setTarget((receiverClasses == MEGAMORPHIC)? megamorphicTarget(): polymorphicTarget(receiverClasses));
+      }
+      UNSYNCED_CALLSITES.offer(this);
+      syncUnsyncedCallSites();
+    }
+    
+    // publish all the callsites relinked so far, the ones relinked by other threads included
+    private static void syncUnsyncedCallSites() {
+      ArrayList<MutableCallSite> callSites = new ArrayList<>();
+      MutableCallSite callSite;
+      while((callSite = UNSYNCED_CALLSITES.poll()) != null) {
+        callSites.add(callSite);
+      }
+      if (!callSites.isEmpty()) {  // already published by another thread
+        syncAll(callSites.toArray(new MutableCallSite[callSites.size()]));
+      }
+    }
+    
+    private static boolean contains(Class<?>[] receiverClasses, Class<?> receiverClass) {
+      for(Class<?> clazz: receiverClasses) {
+        if (clazz == receiverClass) {
+          return true;
+        }
+      }
+      return false;
+    }
+    
     @SuppressWarnings("unused")  // used by a method handle
-    private static MethodHandle fallback(InliningCacheCallSite callsite, Object receiver) throws Throwable {
-      MethodHandle endPoint = callsite.endPoint;
-      if (callsite.kindOfTypeCounter++ == MAX_KIND_OF_TYPE) { // too many kinds of type, just give up
-        callsite.setTarget(endPoint);
-        return endPoint;
+    private static MethodHandle dispatch(InliningCacheCallSite callsite, Object receiver) {
+      if (receiver == null) { // no receiver
+        return callsite.endPoint;  // will throw a NPE later 
       }
-      
+      return callsite.dispatchTarget(receiver.getClass());
+    }
+    
+    @SuppressWarnings("unused")  // used by a method handle
+    private static MethodHandle fallback(InliningCacheCallSite callsite, Object receiver) throws Throwable {
       if (receiver == null) { // no receiver
-        return endPoint;  // will throw a NPE later 
+        return callsite.endPoint;  // will throw a NPE later 
       }
       Class<?> receiverClass = receiver.getClass();
       
-      MethodType endPointType = endPoint.type();
-      MethodHandle test = insertArguments(CLASS_CHECK, 1, receiverClass).asType(methodType(boolean.class, endPointType.parameterType(0)));
-      MethodHandle target = endPoint.asType(endPointType.changeParameterType(0, receiverClass)).asType(endPointType); // insert a cast to help the JIT ?
-      MethodHandle gwt = guardWithTest(test, target, callsite.getTarget());
-      callsite.setTarget(gwt);
-      return endPoint;
+      for(;;) {
+        Class<?>[] receiverClasses = callsite.receiverClasses;
+        if (receiverClasses == MEGAMORPHIC) {
+          return dispatch(callsite, receiver);
+        }
+        if (contains(receiverClasses, receiverClass)) {  // added by another thread
+          return callsite.target(receiverClass);
+        }
+        ProxyMonitor monitor = Proxy2.monitor();
+        if (receiverClasses.length == MAX_KIND_OF_TYPE) { // too many kinds of type, use a dispatch table
+          if (RECEIVER_CLASSES.compareAndSet(callsite, receiverClasses, MEGAMORPHIC)) {
+            for(Class<?> clazz: receiverClasses) {  // pre-populate the dispatch table
+              callsite.dispatchTarget(clazz);
+            }
+            callsite.relink();
+            if (monitor != null) {
+              monitor.inliningCacheMegamorphic(callsite.method);
+            }
+          }
+          continue;
+        }
+        Class<?>[] newReceiverClasses = Arrays.copyOf(receiverClasses, receiverClasses.length + 1);
+        newReceiverClasses[receiverClasses.length] = receiverClass;
+        if (RECEIVER_CLASSES.compareAndSet(callsite, receiverClasses, newReceiverClasses)) {
+          callsite.relink();
+          if (monitor != null) {
+            monitor.inliningCacheUpdated(callsite.method, receiverClass, newReceiverClasses.length);
+          }
+          return callsite.target(receiverClass);
+        }
+      }
     }
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,199 @@
+package com.github.forax.proxy2;
+
+import static java.lang.invoke.MethodHandles.constant;
+import static java.lang.invoke.MethodHandles.dropArguments;
+import static java.lang.invoke.MethodHandles.filterArguments;
+import static java.lang.invoke.MethodHandles.foldArguments;
+import static java.lang.invoke.MethodHandles.guardWithTest;
+import static java.lang.invoke.MethodHandles.permuteArguments;
+import static java.lang.invoke.MethodType.methodType;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.util.Objects;
+
+/**
+ * Implementations of equals, hashCode and toString based on the values of the fields of a proxy,
+ * as method handle trees (no reflection at runtime).
+ *
+ * The method handles take the proxy and the values of the fields as arguments,
+ * like the invokedynamic inside the proxy methods, followed by the other object for equals.
+ *
+ * @see Proxy2.ProxyContext#fieldBasedImplementation()
+ */
+class ObjectMethods {
+  private ObjectMethods() {
+    // no instance
+  }
+
+  /**
+   * Returns a method handle of type (Object proxy, fields...)int,
+   * the hash code is computed like {@link java.util.Arrays#hashCode(Object[])}, starting with 1.
+   */
+  static MethodHandle hashCode(MethodType type) {
+    MethodHandle hashCode = dropArguments(constant(int.class, 1), 0, type.parameterList());
+    for(int i = 1; i < type.parameterCount(); i++) {
+      Class<?> fieldType = type.parameterType(i);
+      // (int hash, fieldType value)int
+      MethodHandle step = filterArguments(MIX, 1, hash(fieldType));
+      int[] reorder = { 0, 1 + i };
+      step = permuteArguments(step, type.insertParameterTypes(0, int.class), reorder);
+      hashCode = foldArguments(step, hashCode);
+    }
+    return hashCode;
+  }
+
+  /**
+   * Returns a method handle of type (Object proxy, fields..., Object other)boolean.
+   */
+  static MethodHandle equals(Lookup lookup, MethodType type) {
+    int otherIndex = type.parameterCount() - 1;
+    MethodHandle equals = dropArguments(constant(boolean.class, true), 0, type.parameterList());
+    MethodHandle notEquals = dropArguments(constant(boolean.class, false), 0, type.parameterList());
+    for(int i = otherIndex; --i >= 1;) {
+      Class<?> fieldType = type.parameterType(i);
+      MethodHandle getter;
+      try {
+        getter = lookup.findGetter(lookup.lookupClass(), "arg" + (i - 1), fieldType).asType(methodType(fieldType, Object.class));
+      } catch (NoSuchFieldException | IllegalAccessException e) {
+        throw new AssertionError(e);
+      }
+      // (fieldType value, Object other)boolean
+      MethodHandle test = filterArguments(equal(fieldType), 1, getter);
+      int[] reorder = { i, otherIndex };
+      test = permuteArguments(test, type, reorder);
+      equals = guardWithTest(test, equals, notEquals);
+    }
+    MethodHandle sameClass = permuteArguments(SAME_CLASS, type, 0, otherIndex);
+    return guardWithTest(sameClass, equals, notEquals);
+  }
+
+  /**
+   * Returns a method handle of type (Object proxy, fields...)String that uses {@code fieldNames}
+   * as names of the fields.
+   */
+  static MethodHandle toString(Class<?> interfaze, String[] fieldNames, MethodType type) {
+    int fieldCount = type.parameterCount() - 1;
+    MethodHandle toString = MethodHandles.insertArguments(TO_STRING, 0, interfaze.getSimpleName(), fieldNames)
+        .asCollector(Object[].class, fieldCount)
+        .asType(type.dropParameterTypes(0, 1));
+    return dropArguments(toString, 0, type.parameterType(0));
+  }
+
+  private static MethodHandle hash(Class<?> type) {
+    if (!type.isPrimitive()) {
+      return OBJECT_HASH.asType(methodType(int.class, type));
+    }
+    if (type == long.class) {
+      return LONG_HASH;
+    }
+    if (type == float.class) {
+      return FLOAT_HASH;
+    }
+    if (type == double.class) {
+      return DOUBLE_HASH;
+    }
+    if (type == boolean.class) {
+      return BOOLEAN_HASH;
+    }
+    return MethodHandles.identity(int.class).asType(methodType(int.class, type));
+  }
+
+  private static MethodHandle equal(Class<?> type) {
+    if (!type.isPrimitive()) {
+      return OBJECT_EQUAL.asType(methodType(boolean.class, type, type));
+    }
+    if (type == long.class) {
+      return LONG_EQUAL;
+    }
+    if (type == float.class) {
+      return FLOAT_EQUAL;
+    }
+    if (type == double.class) {
+      return DOUBLE_EQUAL;
+    }
+    if (type == boolean.class) {
+      return BOOLEAN_EQUAL;
+    }
+    return INT_EQUAL.asType(methodType(boolean.class, type, type));
+  }
+
+  // referenced by method handles, keep it compatible with Java 7 (no Integer.hashCode(int) etc)
+
+  static int mix(int hash, int value) {
+    return hash * 31 + value;
+  }
+  static int hash(Object value) {
+    return Objects.hashCode(value);
+  }
+  static int hash(long value) {
+    return (int)(value ^ (value >>> 32));
+  }
+  static int hash(float value) {
+    return Float.floatToIntBits(value);
+  }
+  static int hash(double value) {
+    return hash(Double.doubleToLongBits(value));
+  }
+  static int hash(boolean value) {
+    return value? 1231: 1237;
+  }
+  static boolean equal(Object value1, Object value2) {
+    return Objects.equals(value1, value2);
+  }
+  static boolean equal(int value1, int value2) {
+    return value1 == value2;
+  }
+  static boolean equal(long value1, long value2) {
+    return value1 == value2;
+  }
+  static boolean equal(float value1, float value2) {
+    return Float.compare(value1, value2) == 0;
+  }
+  static boolean equal(double value1, double value2) {
+    return Double.compare(value1, value2) == 0;
+  }
+  static boolean equal(boolean value1, boolean value2) {
+    return value1 == value2;
+  }
+  static boolean sameClass(Object proxy, Object other) {
+    return other != null && proxy.getClass() == other.getClass();
+  }
+  static String toString(String name, String[] fieldNames, Object[] values) {
+    StringBuilder builder = new StringBuilder(name).append('[');
+    for(int i = 0; i < values.length; i++) {
+      if (i != 0) {
+        builder.append(", ");
+      }
+      builder.append(fieldNames[i]).append('=').append(values[i]);
+    }
+    return builder.append(']').toString();
+  }
+
+  private static final MethodHandle MIX, OBJECT_HASH, LONG_HASH, FLOAT_HASH, DOUBLE_HASH, BOOLEAN_HASH,
+                                    OBJECT_EQUAL, INT_EQUAL, LONG_EQUAL, FLOAT_EQUAL, DOUBLE_EQUAL, BOOLEAN_EQUAL,
+                                    SAME_CLASS, TO_STRING;
+  static {
+    Lookup lookup = MethodHandles.lookup();
+    try {
+      MIX = lookup.findStatic(ObjectMethods.class, "mix", methodType(int.class, int.class, int.class));
+      OBJECT_HASH = lookup.findStatic(ObjectMethods.class, "hash", methodType(int.class, Object.class));
+      LONG_HASH = lookup.findStatic(ObjectMethods.class, "hash", methodType(int.class, long.class));
+      FLOAT_HASH = lookup.findStatic(ObjectMethods.class, "hash", methodType(int.class, float.class));
+      DOUBLE_HASH = lookup.findStatic(ObjectMethods.class, "hash", methodType(int.class, double.class));
+      BOOLEAN_HASH = lookup.findStatic(ObjectMethods.class, "hash", methodType(int.class, boolean.class));
+      OBJECT_EQUAL = lookup.findStatic(ObjectMethods.class, "equal", methodType(boolean.class, Object.class, Object.class));
+      INT_EQUAL = lookup.findStatic(ObjectMethods.class, "equal", methodType(boolean.class, int.class, int.class));
+      LONG_EQUAL = lookup.findStatic(ObjectMethods.class, "equal", methodType(boolean.class, long.class, long.class));
+      FLOAT_EQUAL = lookup.findStatic(ObjectMethods.class, "equal", methodType(boolean.class, float.class, float.class));
+      DOUBLE_EQUAL = lookup.findStatic(ObjectMethods.class, "equal", methodType(boolean.class, double.class, double.class));
+      BOOLEAN_EQUAL = lookup.findStatic(ObjectMethods.class, "equal", methodType(boolean.class, boolean.class, boolean.class));
+      SAME_CLASS = lookup.findStatic(ObjectMethods.class, "sameClass", methodType(boolean.class, Object.class, Object.class));
+      TO_STRING = lookup.findStatic(ObjectMethods.class, "toString", methodType(String.class, String.class, String[].class, Object[].class));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
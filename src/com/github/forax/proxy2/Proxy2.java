@@ -2,24 +2,41 @@ package com.github.forax.proxy2;
 
 import static org.objectweb.asm.Opcodes.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodHandles.Lookup;
 import java.lang.invoke.MethodType;
-import java.lang.reflect.Field;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.UndeclaredThrowableException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.Handle;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Type;
 
-import sun.misc.Unsafe;
-
 /**
  * A bunch of static factory methods to create proxy factories.
  * 
@@ -29,12 +46,30 @@ import sun.misc.Unsafe;
  * so calling {@link #createAnonymousProxyFactory(Lookup, MethodType, ProxyHandler)}
  * or its siblings with the same interface as return type of the method type
  * will generated as many proxy classes as the number of calls.
+ * Use a {@link ProxyCache} to share the proxy classes created with the same handler.
  */
 public class Proxy2 {
   private Proxy2() {
     // no instance
   }
   
+  private static volatile ProxyMonitor monitor;
+  
+  /**
+   * Install a monitor that will receive the events emitted when a proxy class is generated
+   * and when its methods are linked.
+   * @param monitor the new monitor or null to uninstall the current monitor.
+   * 
+   * @see JMXProxyMonitor#install()
+   */
+  public static void setMonitor(ProxyMonitor monitor) {
+    Proxy2.monitor = monitor;
+  }
+  
+  static ProxyMonitor monitor() {
+    return monitor;
+  }
+  
   /**
    * Specify how to link a proxy method to its implementation. 
    */
@@ -43,7 +78,7 @@ public class Proxy2 {
      * Provide default implementations of all methods of {@link ProxyHandler} 
      * but {@link ProxyHandler#bootstrap(ProxyContext)}.
      */
-    public static abstract class Default implements ProxyHandler {
+    public static abstract class Default implements ProxyHandler, Intrinsics {
       /**
        * {@inheritDoc}
        * 
@@ -65,6 +100,38 @@ public class Proxy2 {
       public boolean isMutable(int fieldIndex, Class<?> fieldType) {
         return false;
       }
+      
+      /**
+       * {@inheritDoc}
+       * 
+       * @implSpec
+       * The implementation always returns null.
+       */
+      @Override
+      public Intrinsic intrinsic(Method method, MethodType methodType) {
+        return null;
+      }
+    }
+    
+    /**
+     * An optional interface that a {@link ProxyHandler} can implement to ask the proxy generator
+     * to implement some methods directly in bytecode instead of linking them with
+     * {@link ProxyHandler#bootstrap(ProxyContext)}.
+     * {@link ProxyHandler.Default} implements this interface.
+     */
+    public interface Intrinsics {
+      /**
+       * Returns the implementation in bytecode of a proxy method or null if the method
+       * should be linked by {@link ProxyHandler#bootstrap(ProxyContext)}.
+       * This method is called once by method when generating the proxy class,
+       * for the abstract methods and the methods {@link ProxyHandler#override(Method) overridden}.
+       * 
+       * @param method a method of the proxy.
+       * @param methodType the parameter types are the types of the proxy fields
+       *                   and the return type is the interface implemented by the proxy.
+       * @return the implementation of the method or null.
+       */
+      public Intrinsic intrinsic(Method method, MethodType methodType);
     }
     
     /**
@@ -96,6 +163,9 @@ public class Proxy2 {
      * This method is only called for method that have an existing implementation
      * (default methods or Object's toString(), equals() and hashCode().
      * This method is called once by method when generating the proxy call.
+     * The methods of java.lang.Object are only overridden if the handler selects them,
+     * a handler that returns true for any method (by example for a method of an interface
+     * that the proxy doesn't implement) keeps the implementations of java.lang.Object.
      * 
      * @param method a method of the interface that may be overridden
      * @return true if the method should be overridden by the proxy.
@@ -186,17 +256,349 @@ public class Proxy2 {
       }
     }
     
+    /**
+     * Returns an implementation of {@code equals}, {@code hashCode} or {@code toString} based on
+     * the values of the fields of the proxy.
+     * Two proxies are equals if they have the same proxy class and their fields are equals,
+     * the primitive values are compared like by the wrapper classes and the references using {@code equals}.
+     * The hash code is computed like {@link java.util.Arrays#hashCode(Object[])} on the field values
+     * and toString returns the simple name of the interface followed by the field values.
+     * The resulting method handle doesn't use reflection nor box the field values
+     * (excepted for {@code toString}).
+     * <pre>
+     *   public boolean override(Method method) {
+     *     return method.getDeclaringClass() == Object.class;
+     *   }
+     *   public CallSite bootstrap(ProxyContext context) throws Throwable {
+     *     if (context.method().getDeclaringClass() == Object.class) {
+     *       return new ConstantCallSite(context.fieldBasedImplementation());
+     *     }
+     *     ...
+     *   }
+     * </pre>
+     * @return a method handle with the type {@link #type()}.
+     * @throws IllegalStateException if the method about to be linked is not
+     *         {@code equals}, {@code hashCode} or {@code toString}.
+     */
+    public MethodHandle fieldBasedImplementation() {
+      String[] fieldNames = new String[methodType.parameterCount() - 1 - method.getParameterTypes().length];
+      for(int i = 0; i < fieldNames.length; i++) {
+        fieldNames[i] = "arg" + i;
+      }
+      return fieldBasedImplementation(fieldNames);
+    }
+    
+    /**
+     * Like {@link #fieldBasedImplementation()} but only the first fields are used,
+     * with {@code fieldNames} as names by toString.
+     */
+    MethodHandle fieldBasedImplementation(String[] fieldNames) {
+      int fieldCount = fieldNames.length;
+      int end = methodType.parameterCount() - method.getParameterTypes().length;
+      MethodType type = methodType.dropParameterTypes(1 + fieldCount, end);
+      MethodHandle target;
+      String name = method.getName();
+      Class<?>[] parameterTypes = method.getParameterTypes();
+      if (name.equals("equals") && parameterTypes.length == 1 && parameterTypes[0] == Object.class) {
+        target = ObjectMethods.equals(lookup, type);
+      } else if (name.equals("hashCode") && parameterTypes.length == 0) {
+        target = ObjectMethods.hashCode(type);
+      } else if (name.equals("toString") && parameterTypes.length == 0) {
+        target = ObjectMethods.toString(proxyInterface(), fieldNames, type);
+      } else {
+        throw new IllegalStateException(method + " is not equals, hashCode or toString");
+      }
+      return MethodHandles.dropArguments(target, 1 + fieldCount, methodType.parameterList().subList(1 + fieldCount, end));
+    }
+    
+    /**
+     * Returns a callsite that profiles the classes of the proxy fields and of the arguments
+     * during a warm-up window and then relinks itself once to a target specialized by {@code specializer}
+     * for the classes observed.
+     * The specialized target is guarded by class checks and falls back to {@code target}.
+     * If no class more precise than the declared type is observed, the callsite is relinked to {@code target}.
+     * <pre>
+     *   public CallSite bootstrap(ProxyContext context) throws Throwable {
+     *     MethodHandle generic = ...
+     *     return context.adaptiveCallSite(generic, profiledType -> ...);
+     *   }
+     * </pre>
+     * 
+     * @param target the generic target, its type must be {@link #type()}.
+     * @param specializer a function that takes the type of the proxy method with the parameter types
+     *                    replaced by the observed classes and returns a method handle of that type.
+     * @return a new callsite that can be returned by {@link ProxyHandler#bootstrap(ProxyContext)}.
+     * @throws IllegalArgumentException if the type of {@code target} is not {@link #type()}.
+     */
+    public CallSite adaptiveCallSite(MethodHandle target, MethodBuilder.Fun<? super MethodType, ? extends MethodHandle> specializer) {
+      if (!target.type().equals(methodType)) {
+        throw new IllegalArgumentException("target type " + target.type() + " is not equals to " + methodType);
+      }
+      return new AdaptiveCallSite(target, specializer);
+    }
+    
+    /**
+     * Returns a callsite that profiles the classes of the proxy fields and of the arguments
+     * during a warm-up window and then relinks itself once to {@code target} with casts
+     * to the classes observed, so the JIT knows the exact classes even if it doesn't profile the callsite.
+     * 
+     * @param target the generic target, its type must be {@link #type()}.
+     * @return a new callsite that can be returned by {@link ProxyHandler#bootstrap(ProxyContext)}.
+     * @throws IllegalArgumentException if the type of {@code target} is not {@link #type()}.
+     * 
+     * @see #adaptiveCallSite(MethodHandle, MethodBuilder.Fun)
+     */
+    public CallSite adaptiveCallSite(MethodHandle target) {
+      return adaptiveCallSite(target, new MethodBuilder.Fun<MethodType, MethodHandle>() {  // no lambda, see retro-weaving
+        @Override
+        public MethodHandle apply(MethodType profiledType) {
+          return target.asType(profiledType);
+        }
+      });
+    }
+    
+    /**
+     * Returns a method handle that calls the implementation overridden by the method about to be linked,
+     * either the default method of an interface, like {@code Interface.super.method(args)} would do,
+     * or the method of the super class of a proxy created by
+     * {@link Proxy2#createSubclassProxyFactory(Lookup, MethodType, Constructor, ProxyHandler)},
+     * like {@code super.method(args)} would do.
+     * The call is an {@code invokespecial} so the JIT can inline the overridden implementation.
+     * <pre>
+     *   public boolean override(Method method) {
+     *     return method.getName().equals("save");
+     *   }
+     *   public CallSite bootstrap(ProxyContext context) throws Throwable {
+     *     MethodHandle target = context.superImplementation();
+     *     ...
+     *   }
+     * </pre>
+     * @return a method handle with the type {@link #type()}, the values of the fields are ignored.
+     * @throws NoSuchMethodException if the method is abstract.
+     * @throws UnsupportedOperationException if the class definition backend can not provide
+     *         a private access to the proxy class.
+     * 
+     * @see Lookup#findSpecial(Class, String, MethodType, Class)
+     */
+    public MethodHandle superImplementation() throws NoSuchMethodException {
+      Class<?> proxyClass = lookup.lookupClass();
+      Class<?> owner = superOwner(proxyClass, method);
+      if (Modifier.isAbstract(method.getModifiers()) || owner == null) {
+        throw new NoSuchMethodException("no super implementation of " + method);
+      }
+      MethodHandle target;
+      try {
+        target = lookup.findSpecial(owner, method.getName(),
+            MethodType.methodType(method.getReturnType(), method.getParameterTypes()), proxyClass);
+      } catch (IllegalAccessException e) {
+        throw (UnsupportedOperationException)new UnsupportedOperationException("the backend can not access to " + method).initCause(e);
+      }
+      int fieldCount = methodType.parameterCount() - 1 - method.getParameterTypes().length;
+      return MethodHandles.dropArguments(target.asType(target.type().changeParameterType(0, Object.class)),
+          1, methodType.parameterList().subList(1, 1 + fieldCount));
+    }
+    
+    // the super class or the direct interface of the proxy class that inherits the method,
+    // invokespecial can not call a method of an interface that is not a direct super interface
+    private static Class<?> superOwner(Class<?> proxyClass, Method method) {
+      Class<?> declaringClass = method.getDeclaringClass();
+      Class<?> superclass = proxyClass.getSuperclass();
+      if (declaringClass.isAssignableFrom(superclass)) {
+        return superclass;
+      }
+      for(Class<?> interfaze: proxyClass.getInterfaces()) {
+        if (declaringClass.isAssignableFrom(interfaze)) {
+          return interfaze;
+        }
+      }
+      return null;
+    }
+    
+    // the interface implemented by the proxy class or its super class
+    Class<?> proxyInterface() {
+      Class<?> proxyClass = lookup.lookupClass();
+      Class<?>[] interfaces = proxyClass.getInterfaces();
+      return (interfaces.length == 0)? proxyClass.getSuperclass(): interfaces[0];
+    }
+    
     // referenced by a method handle
     static ProxyContext create(Lookup lookup, MethodType methodType, Method method) {
       return new ProxyContext(lookup, methodType, method);
     }
   }
 
+  /**
+   * An implementation of a proxy method generated directly in bytecode, without an invokedynamic,
+   * returned by {@link ProxyHandler.Intrinsics#intrinsic(Method, MethodType)}.
+   */
+  public static final class Intrinsic {
+    enum Kind {
+      VALUE_EQUALS, VALUE_HASH_CODE, CACHED_VALUE_HASH_CODE, DELEGATE, RETURN_FIELD
+    }
+    
+    final Kind kind;
+    final int fieldIndex;   // -1 if not used
+    final Method target;    // null if not used
+    
+    private Intrinsic(Kind kind, int fieldIndex, Method target) {
+      this.kind = kind;
+      this.fieldIndex = fieldIndex;
+      this.target = target;
+    }
+    
+    /**
+     * Returns an implementation of {@code equals(Object)} that compares the values of the fields,
+     * with the same semantics as {@link ProxyContext#fieldBasedImplementation()}
+     * but without boxing and without invokedynamic.
+     * @return an implementation of {@code equals(Object)}.
+     */
+    public static Intrinsic valueEquals() {
+      return VALUE_EQUALS;
+    }
+    
+    /**
+     * Returns an implementation of {@code hashCode()} that combines the hash code of the values of the fields,
+     * with the same semantics as {@link ProxyContext#fieldBasedImplementation()}
+     * but without boxing and without invokedynamic.
+     * @return an implementation of {@code hashCode()}.
+     */
+    public static Intrinsic valueHashCode() {
+      return VALUE_HASH_CODE;
+    }
+    
+    /**
+     * Returns an implementation of {@code hashCode()} like {@link #valueHashCode()} that stores
+     * the hash code in an extra field of the proxy the first time it is computed.
+     * The hash code is only cached if all fields are not {@link ProxyHandler#isMutable(int, Class) mutable},
+     * so the values of the fields must be immutable too.
+     * @return an implementation of {@code hashCode()}.
+     */
+    public static Intrinsic cachedValueHashCode() {
+      return CACHED_VALUE_HASH_CODE;
+    }
+    
+    /**
+     * Returns an implementation that calls the same method on the value of a field,
+     * with the arguments of the proxy method.
+     * This is equivalent to
+     * <pre>
+     *   methodBuilder(context.type()).dropFirst().unreflect(lookup, context.method())
+     * </pre>
+     * if the field is the first one, but the generated code is just a field access followed by a call.
+     * @param fieldIndex the index of the field containing the delegate.
+     * @return an implementation that delegates the call to the value of a field.
+     */
+    public static Intrinsic delegate(int fieldIndex) {
+      return new Intrinsic(Kind.DELEGATE, fieldIndex, null);
+    }
+    
+    /**
+     * Returns an implementation that calls {@code target} on the value of a field,
+     * with the arguments of the proxy method.
+     * {@code target} must be a public virtual method of a public class, with parameter types that are the same
+     * or super types of the parameter types of the proxy method
+     * and a return type convertible to the return type of the proxy method
+     * (the result is discarded if the proxy method returns void).
+     * @param fieldIndex the index of the field containing the delegate.
+     * @param target the method called on the delegate.
+     * @return an implementation that delegates the call to the value of a field.
+     * @throws IllegalArgumentException if {@code target} is static or not public.
+     */
+    public static Intrinsic delegate(int fieldIndex, Method target) {
+      int modifiers = target.getModifiers();
+      if (Modifier.isStatic(modifiers) || !Modifier.isPublic(modifiers) || !Modifier.isPublic(target.getDeclaringClass().getModifiers())) {
+        throw new IllegalArgumentException(target + " is not a public virtual method of a public class");
+      }
+      return new Intrinsic(Kind.DELEGATE, fieldIndex, target);
+    }
+    
+    /**
+     * Returns an implementation of a method with no parameter that returns the value of a field.
+     * @param fieldIndex the index of the field.
+     * @return an implementation that returns the value of a field.
+     */
+    public static Intrinsic returnField(int fieldIndex) {
+      return new Intrinsic(Kind.RETURN_FIELD, fieldIndex, null);
+    }
+    
+    private static final Intrinsic VALUE_EQUALS = new Intrinsic(Kind.VALUE_EQUALS, -1, null),
+                                   VALUE_HASH_CODE = new Intrinsic(Kind.VALUE_HASH_CODE, -1, null),
+                                   CACHED_VALUE_HASH_CODE = new Intrinsic(Kind.CACHED_VALUE_HASH_CODE, -1, null);
+    
+    /**
+     * Check that the intrinsic can implement the method of a proxy with the fields described
+     * by the parameter types of {@code methodType}.
+     */
+    void checkSignature(Method method, MethodType methodType) {
+      if ((kind == Kind.DELEGATE || kind == Kind.RETURN_FIELD) && (fieldIndex < 0 || fieldIndex >= methodType.parameterCount())) {
+        throw new IllegalArgumentException("intrinsic " + this + " uses a field that doesn't exist in " + methodType);
+      }
+      Class<?> returnType = method.getReturnType();
+      Class<?>[] parameterTypes = method.getParameterTypes();
+      boolean valid;
+      switch(kind) {
+      case VALUE_EQUALS:
+        valid = returnType == boolean.class && Arrays.equals(parameterTypes, new Class<?>[] { Object.class });
+        break;
+      case VALUE_HASH_CODE:
+      case CACHED_VALUE_HASH_CODE:
+        valid = returnType == int.class && parameterTypes.length == 0;
+        break;
+      case DELEGATE: {
+        Method callee = (target == null)? method: target;
+        valid = !methodType.parameterType(fieldIndex).isPrimitive() &&
+            isAssignable(parameterTypes, callee.getParameterTypes()) &&
+            isConvertible(callee.getReturnType(), returnType);
+        break;
+      }
+      case RETURN_FIELD:
+        valid = parameterTypes.length == 0 && isConvertible(methodType.parameterType(fieldIndex), returnType);
+        break;
+      default:
+        throw new AssertionError("unknown kind " + kind);
+      }
+      if (!valid) {
+        throw new IllegalArgumentException("intrinsic " + this + " can not implement " + method + " with the fields " + methodType);
+      }
+    }
+    
+    private static boolean isAssignable(Class<?>[] from, Class<?>[] to) {
+      if (from.length != to.length) {
+        return false;
+      }
+      for(int i = 0; i < from.length; i++) {
+        if (from[i] != to[i] && (from[i].isPrimitive() || !to[i].isAssignableFrom(from[i]))) {
+          return false;
+        }
+      }
+      return true;
+    }
+    
+    // no boxing, the reference types are checked by a cast if necessary
+    private static boolean isConvertible(Class<?> from, Class<?> to) {
+      return from == to || to == void.class || (!from.isPrimitive() && !to.isPrimitive());
+    }
+    
+    @Override
+    public String toString() {
+      switch(kind) {
+      case DELEGATE:
+        return "DELEGATE(" + fieldIndex + ((target == null)? "": ", " +
+            target.getDeclaringClass().getName() + '.' + target.getName() + Type.getMethodDescriptor(target)) + ')';
+      case RETURN_FIELD:
+        return "RETURN_FIELD(" + fieldIndex + ')';
+      default:
+        return kind.name();
+      }
+    }
+  }
+  
   /**
    * A factory of proxy implementing an interface.
    * 
    * @param <T> the type of the proxy interface.
    * @see Proxy2#createAnonymousProxyFactory(Class, Class[], ProxyHandler)
+   * @see Proxy2#createAnonymousProxyFactory(Lookup, Class, ProxyHandler)
    */
   @FunctionalInterface
   public interface ProxyFactory<T> {
@@ -208,6 +610,188 @@ public class Proxy2 {
     public T create(Object... fieldValues);
   }
   
+  /**
+   * A cache of proxy factories that share the same {@link ProxyHandler}.
+   * A proxy class is generated only once for a couple (interface, field types),
+   * further calls to {@link #factory(MethodType)} return the same factory.
+   * 
+   * The cache is backed by a {@link ClassValue} on the proxy interface,
+   * so the proxy classes can be unloaded once the cache is not reachable anymore,
+   * unless the handler references the cache itself.
+   * 
+   * @see Proxy2#createProxyCache(Lookup, ProxyHandler)
+   */
+  public static class ProxyCache {
+    private final Lookup lookup;
+    private final ProxyHandler handler;
+    private final ClassValue<ConcurrentHashMap<MethodType, MethodHandle>> factories =
+        new ClassValue<ConcurrentHashMap<MethodType, MethodHandle>>() {
+          @Override
+          protected ConcurrentHashMap<MethodType, MethodHandle> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+          }
+        };
+    
+    ProxyCache(Lookup lookup, ProxyHandler handler) {
+      this.lookup = lookup;
+      this.handler = handler;
+    }
+    
+    /**
+     * Returns the handler used to link the methods of all the proxies created by this cache.
+     * @return the handler used to link the methods of all the proxies created by this cache.
+     */
+    public ProxyHandler handler() {
+      return handler;
+    }
+    
+    /**
+     * Returns a factory of proxy instances with several fields described by the parameter types
+     * of {@code methodType} and implementing an interface described by the return type of {@code methodType},
+     * the proxy class is only generated the first time this method is called for a given method type.
+     * Two threads calling this method at the same time may generate two proxy classes,
+     * but always get the same factory.
+     * 
+     * @param methodType the parameter types of this {@link MethodType} described the type of the fields
+     *                   and the return type the interface implemented by the proxy.
+     * @return a method handle that if {@link MethodHandle#invokeExact(Object...) called} will create
+     *         a proxy instance of a class implementing the return interfaces.
+     * @throws IllegalArgumentException if the proxy interface is not visible from the lookup object.
+     * 
+     * @see Proxy2#createAnonymousProxyFactory(Lookup, MethodType, ProxyHandler)
+     */
+    public MethodHandle factory(MethodType methodType) {
+      ConcurrentHashMap<MethodType, MethodHandle> map = factories.get(methodType.returnType());
+      MethodHandle factory = map.get(methodType);
+      if (factory != null) {
+        return factory;
+      }
+      factory = createAnonymousProxyFactory(lookup, methodType, handler);
+      MethodHandle previous = map.putIfAbsent(methodType, factory);
+      return (previous != null)? previous: factory;
+    }
+  }
+  
+  /**
+   * Create a cache of proxy factories that will all use the same {@code handler}.
+   * 
+   * @param lookup access token used to access to the interface methods
+   * @param handler an interface that specifies how a proxy method is linked to its implementation.
+   * @return a new cache of proxy factories.
+   * 
+   * @see ProxyCache#factory(MethodType)
+   */
+  public static ProxyCache createProxyCache(Lookup lookup, ProxyHandler handler) {
+    return new ProxyCache(lookup, handler);
+  }
+  
+  /**
+   * Create a proxy instance implementing the interface {@code type} that forwards all the calls
+   * to the {@code handler}, like {@link java.lang.reflect.Proxy#newProxyInstance(ClassLoader, Class[], java.lang.reflect.InvocationHandler)}
+   * but without boxing the arguments nor the return value of the calls.
+   * The proxy classes are cached by interface.
+   * 
+   * @param type a public interface implemented by the proxy.
+   * @param handler the handler called for each call to a method of the proxy (including default methods).
+   * @return a new proxy instance.
+   * @throws IllegalArgumentException if {@code type} is not a public interface.
+   * 
+   * @see UnboxedInvocationHandler
+   */
+  public static <T> T newProxyInstance(Class<T> type, UnboxedInvocationHandler handler) {
+    if (!type.isInterface()) {
+      throw new IllegalArgumentException(type + " is not an interface");
+    }
+    MethodHandle factory = UnboxedInvocationHandler.CACHE.factory(MethodType.methodType(type, UnboxedInvocationHandler.class));
+    try {
+      return type.cast(factory.invoke(handler));
+    } catch(RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new UndeclaredThrowableException(e);
+    }
+  }
+  
+  /**
+   * Create a bean implementing the interface {@code type} with one field by property,
+   * all properties being initialized with their default value (null, 0 or false).
+   * A getter is a method with no parameter named {@code name()}, {@code getName()}
+   * or {@code isName()} if it returns a boolean, a setter is a method with one parameter
+   * named {@code name(value)} or {@code setName(value)} that returns void or the bean itself.
+   * The type of a field is the type of the property, so a primitive property is not boxed,
+   * the getters just return the value of a field and toString() returns the values of the properties.
+   * The bean classes are cached by interface.
+   * <pre>
+   *   public interface User {
+   *     String name();
+   *     User name(String name);
+   *     int age();
+   *     User age(int age);
+   *   }
+   *   User user = Proxy2.newBean(User.class).name("Bob").age(42);
+   * </pre>
+   * 
+   * @param type a public interface containing only getters and setters.
+   * @return a new bean.
+   * @throws IllegalArgumentException if {@code type} is not a public interface or contains
+   *         an abstract method which is neither a getter nor a setter.
+   *         
+   * @see #createBeanFactory(Lookup, Class)
+   */
+  public static <T> T newBean(Class<T> type) {
+    MethodHandle factory = BeanProxyHandler.DEFAULT_FACTORIES.get(type);
+    try {
+      return type.cast(factory.invoke());
+    } catch(RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new UndeclaredThrowableException(e);
+    }
+  }
+  
+  /**
+   * Create a factory of beans implementing the interface {@code type}, like {@link #newBean(Class)}
+   * but without caching and for an interface visible from {@code lookup}.
+   * 
+   * @param lookup access token used to access to the interface methods.
+   * @param type an interface containing only getters and setters.
+   * @return a method handle with no parameter that creates a new bean each time it is called,
+   *         all properties being initialized with their default value.
+   * @throws IllegalArgumentException if the interface is not visible from the lookup object
+   *         or contains an abstract method which is neither a getter nor a setter.
+   */
+  public static MethodHandle createBeanFactory(Lookup lookup, Class<?> type) {
+    MethodType beanType = BeanProxyHandler.BEAN_INFOS.get(type).beanType(type);
+    return BeanProxyHandler.defaultValues(createAnonymousProxyFactory(lookup, beanType, new BeanProxyHandler(false)), 0);
+  }
+
+  /**
+   * Create an expando object implementing the interface {@code type}, with no property.
+   * The proxy class is created once by interface.
+   * <pre>
+   *   Point point = Proxy2.newExpando(Point.class);
+   *   point.setX(1);
+   *   point.$("y", 2);
+   * </pre>
+   *
+   * @param type a public sub-interface of {@link ExpandoObject} or ExpandoObject itself.
+   * @return a new expando object.
+   * @throws IllegalArgumentException if {@code type} is not a public sub-interface of ExpandoObject.
+   *
+   * @see ExpandoObject
+   */
+  public static <T extends ExpandoObject> T newExpando(Class<T> type) {
+    MethodHandle factory = ExpandoProxyHandler.CACHE.factory(ExpandoProxyHandler.expandoType(type));
+    HiddenClass root = ExpandoProxyHandler.ROOTS.get(type);
+    try {
+      return type.cast(factory.invoke(root, root.newStash(), root.newPrimitives()));
+    } catch(RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new UndeclaredThrowableException(e);
+    }
+  }
+
   private static final Class<?>[] EMPTY_FIELD_TYPES = new Class<?>[0];
 
   /**
@@ -241,11 +825,13 @@ public class Proxy2 {
    */
   public static <T> ProxyFactory<T> createAnonymousProxyFactory(Class<? extends T> type, Class<?>[] fieldTypes, ProxyHandler handler) {
     MethodHandle mh = createAnonymousProxyFactory(MethodHandles.publicLookup(), MethodType.methodType(type, fieldTypes), handler);
+    int fieldCount = fieldTypes.length;
+    MethodHandle spreader = mh.asType(MethodType.genericMethodType(fieldCount)).asSpreader(Object[].class, fieldCount);
     return new ProxyFactory<T>() {   // don't use a lambda here to avoid cycle when retro-weaving
       @Override
       public T create(Object... fieldValues) {
         try {
-          return type.cast(mh.invokeWithArguments(fieldValues));
+          return type.cast((Object)spreader.invokeExact(fieldValues));
         } catch(RuntimeException | Error e) {
           throw e;
         } catch (Throwable e) {
@@ -278,17 +864,276 @@ public class Proxy2 {
     });
   }
   
-  private static final Unsafe UNSAFE;
+  /**
+   * Create a factory that will create anonymous proxy instances, the factory being an instance
+   * of the functional interface {@code factoryType}.
+   * The return type of the abstract method of {@code factoryType} is the interface implemented by the proxy
+   * and the parameter types of this method describe the fields of the proxy.
+   * The {@code handler} is used to specify the linking between a method and its implementation.
+   * 
+   * Unlike {@link ProxyFactory#create(Object...)}, calling the abstract method of the returned factory
+   * doesn't allocate an array nor box the field values, it directly calls the constructor of the proxy class.
+   * <pre>
+   *   interface IntOpFactory {
+   *     IntOp create(IntOp delegate);
+   *   }
+   *   IntOpFactory factory = Proxy2.createAnonymousProxyFactory(lookup, IntOpFactory.class, handler);
+   *   IntOp proxy = factory.create(delegate);
+   * </pre>
+   * 
+   * @param lookup access token used to access to the interface methods
+   * @param factoryType a functional interface whose abstract method describe the proxy fields
+   *                    and the interface implemented by the proxy.
+   * @param handler an interface that specifies how a proxy method is linked to its implementation.
+   * @return an instance of {@code factoryType} that will create proxy instances.
+   * @throws IllegalArgumentException if {@code factoryType} is not a functional interface
+   *         or if the proxy interface or {@code factoryType} are not visible from the lookup object.
+   *         
+   * @see #createAnonymousProxyFactory(Lookup, MethodType, ProxyHandler)
+   */
+  public static <F> F createAnonymousProxyFactory(Lookup lookup, Class<F> factoryType, ProxyHandler handler) {
+    Method factoryMethod = functionalMethod(factoryType);
+    MethodHandle mh = createAnonymousProxyFactory(lookup,
+        MethodType.methodType(factoryMethod.getReturnType(), factoryMethod.getParameterTypes()), handler);
+    MethodHandle factoryMH = createAnonymousProxyFactory(lookup, MethodType.methodType(factoryType), new FactoryProxyHandler(mh));
+    try {
+      return factoryType.cast(factoryMH.invoke());
+    } catch(RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new UndeclaredThrowableException(e);
+    }
+  }
+  
+  private static Method functionalMethod(Class<?> factoryType) {
+    if (!factoryType.isInterface()) {
+      throw new IllegalArgumentException(factoryType + " is not an interface");
+    }
+    Method functionalMethod = null;
+    // a method re-declared with a more specific return type is the same method
+    for(ArrayList<Method> declarations: declarations(new Class<?>[] { factoryType }).values()) {
+      Method method = selectDeclaration(declarations);
+      if (!Modifier.isAbstract(method.getModifiers()) || isObjectMethod(method)) {
+        continue;
+      }
+      if (functionalMethod != null) {
+        throw new IllegalArgumentException(factoryType + " has more than one abstract method");
+      }
+      functionalMethod = method;
+    }
+    if (functionalMethod == null) {
+      throw new IllegalArgumentException(factoryType + " has no abstract method");
+    }
+    return functionalMethod;
+  }
+  
+  // the public methods of java.lang.Object that can be overridden
+  private static final Method[] OBJECT_METHODS;
+  // a method that no proxy implements, used to detect the handlers that override all methods
+  private static final Method UNKNOWN_METHOD;
   static {
-    Unsafe unsafe;
     try {
-      Field unsafeField = Unsafe.class.getDeclaredField("theUnsafe");
-      unsafeField.setAccessible(true);
-      unsafe =  (Unsafe)unsafeField.get(null);
-    } catch (NoSuchFieldException|IllegalAccessException e) {
+      OBJECT_METHODS = new Method[] {
+          Object.class.getMethod("equals", Object.class),
+          Object.class.getMethod("hashCode"),
+          Object.class.getMethod("toString")
+      };
+      UNKNOWN_METHOD = UnknownInterface.class.getMethod("unknownMethod");
+    } catch (NoSuchMethodException e) {
       throw new AssertionError(e);
     }
-    UNSAFE = unsafe;
+  }
+  
+  private interface UnknownInterface {
+    void unknownMethod();
+  }
+  
+  // true if the interface re-declares the method of java.lang.Object
+  private static boolean isDeclared(ArrayList<Method> methods, Method objectMethod) {
+    for(Method method: methods) {
+      if (method.getName().equals(objectMethod.getName()) &&
+          Arrays.equals(method.getParameterTypes(), objectMethod.getParameterTypes())) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+  private static boolean isObjectMethod(Method method) {
+    try {
+      Object.class.getMethod(method.getName(), method.getParameterTypes());
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+  
+  /**
+   * Returns the public instance methods of the interfaces grouped by name and parameter types.
+   */
+  private static LinkedHashMap<String, ArrayList<Method>> declarations(Class<?>[] interfaces) {
+    LinkedHashMap<String, ArrayList<Method>> declarationMap = new LinkedHashMap<>();
+    for(Class<?> interfaze: interfaces) {
+      for(Method method: interfaze.getMethods()) {
+        if (Modifier.isStatic(method.getModifiers())) {
+          continue;
+        }
+        String key = signature(method);
+        ArrayList<Method> declarations = declarationMap.get(key);
+        if (declarations == null) {
+          declarations = new ArrayList<>();
+          declarationMap.put(key, declarations);
+        }
+        if (!declarations.contains(method)) {  // an interface inherited twice
+          declarations.add(method);
+        }
+      }
+    }
+    return declarationMap;
+  }
+  
+  /**
+   * Returns the methods of a class that a subclass can override, the public and protected methods
+   * not hidden by a method of a subclass and the abstract methods of the interfaces.
+   * A final method is hidden but not returned.
+   * @throws IllegalArgumentException if an abstract method is package private.
+   */
+  private static LinkedHashMap<String, ArrayList<Method>> classDeclarations(Class<?> type) {
+    LinkedHashMap<String, ArrayList<Method>> declarationMap = new LinkedHashMap<>();
+    HashSet<String> hiddenSet = new HashSet<>();
+    for(Class<?> clazz = type; clazz != null; clazz = clazz.getSuperclass()) {
+      for(Method method: clazz.getDeclaredMethods()) {
+        int modifiers = method.getModifiers();
+        if (Modifier.isStatic(modifiers) || Modifier.isPrivate(modifiers) || method.isBridge()) {
+          continue;
+        }
+        String key = signature(method);
+        if (!hiddenSet.add(key)) {
+          continue;
+        }
+        if (!Modifier.isPublic(modifiers) && !Modifier.isProtected(modifiers)) {
+          if (Modifier.isAbstract(modifiers)) {
+            throw new IllegalArgumentException(method + " is abstract and package private");
+          }
+          continue;
+        }
+        if (Modifier.isFinal(modifiers)) {
+          continue;
+        }
+        declarationMap.put(key, new ArrayList<>(Collections.singletonList(method)));
+      }
+    }
+    for(Method method: type.getMethods()) {  // the methods of the interfaces
+      if (!Modifier.isStatic(method.getModifiers()) && hiddenSet.add(signature(method))) {
+        declarationMap.put(signature(method), new ArrayList<>(Collections.singletonList(method)));
+      }
+    }
+    return declarationMap;
+  }
+  
+  // the name and the parameter types of a method
+  private static String signature(Method method) {
+    String desc = Type.getMethodDescriptor(method);
+    return method.getName() + desc.substring(0, desc.lastIndexOf(')') + 1);
+  }
+  
+  /**
+   * Returns the declaration of the most specific interface or null if the declarations are unrelated.
+   * @throws IllegalArgumentException if the return types are not compatible.
+   */
+  private static Method mostSpecific(ArrayList<Method> declarations) {
+    Method mostSpecific = null;
+    loop: for(Method method: declarations) {
+      for(Method declaration: declarations) {
+        Class<?> returnType = declaration.getReturnType();
+        if (!returnType.isAssignableFrom(method.getReturnType()) &&
+            !method.getReturnType().isAssignableFrom(returnType)) {
+          throw new IllegalArgumentException(method + " and " + declaration + " have incompatible return types");
+        }
+        if (!declaration.getDeclaringClass().isAssignableFrom(method.getDeclaringClass()) ||
+            !returnType.isAssignableFrom(method.getReturnType())) {
+          continue loop;
+        }
+      }
+      mostSpecific = method;
+    }
+    return mostSpecific;
+  }
+  
+  /**
+   * Returns the declaration of the most specific interface or, if the declarations are unrelated,
+   * the first declaration with the most specific return type.
+   * @throws IllegalArgumentException if the return types are not compatible.
+   */
+  private static Method selectDeclaration(ArrayList<Method> declarations) {
+    Method method = mostSpecific(declarations);
+    if (method != null) {
+      return method;
+    }
+    method = declarations.get(0);
+    for(Method declaration: declarations) {
+      if (method.getReturnType() != declaration.getReturnType() && method.getReturnType().isAssignableFrom(declaration.getReturnType())) {
+        method = declaration;
+      }
+    }
+    return method;
+  }
+  
+  private static final Method[] NO_BRIDGES = new Method[0];
+  
+  /**
+   * Returns the declarations with a return type different from the return type of {@code method}.
+   */
+  private static Method[] bridges(Method method, ArrayList<Method> declarations) {
+    ArrayList<Method> bridges = new ArrayList<>();
+    loop: for(Method declaration: declarations) {
+      Class<?> returnType = declaration.getReturnType();
+      if (returnType == method.getReturnType()) {
+        continue;
+      }
+      for(Method bridge: bridges) {
+        if (bridge.getReturnType() == returnType) {
+          continue loop;
+        }
+      }
+      bridges.add(declaration);
+    }
+    return bridges.isEmpty()? NO_BRIDGES: bridges.toArray(new Method[bridges.size()]);
+  }
+  
+  /**
+   * Generate a method with the descriptor of {@code bridge} that calls {@code method}.
+   */
+  private static void generateBridge(ClassWriter writer, String proxyName, Method method, Method bridge) {
+    MethodVisitor mv = writer.visitMethod(ACC_PUBLIC|ACC_BRIDGE|ACC_SYNTHETIC, bridge.getName(), Type.getMethodDescriptor(bridge), null,
+        internalNames(bridge.getExceptionTypes()));
+    mv.visitCode();
+    mv.visitVarInsn(ALOAD, 0);
+    int slot = 1;
+    for(Class<?> parameterType: bridge.getParameterTypes()) {
+      mv.visitVarInsn(Type.getType(parameterType).getOpcode(ILOAD), slot);
+      slot += (parameterType == long.class || parameterType == double.class)? 2: 1;
+    }
+    mv.visitMethodInsn(INVOKEVIRTUAL, proxyName, method.getName(), Type.getMethodDescriptor(method), false);
+    mv.visitInsn(Type.getReturnType(bridge).getOpcode(IRETURN));
+    mv.visitMaxs(-1, -1);
+    mv.visitEnd();
+  }
+  
+  /**
+   * Link the abstract method of a factory interface to the static factory method of a proxy class.
+   */
+  private static class FactoryProxyHandler extends ProxyHandler.Default {
+    private final MethodHandle factory;
+    
+    FactoryProxyHandler(MethodHandle factory) {
+      this.factory = factory;
+    }
+    
+    @Override
+    public CallSite bootstrap(ProxyContext context) throws Throwable {
+      return new ConstantCallSite(MethodHandles.dropArguments(factory, 0, Object.class).asType(context.type()));
+    }
   }
   
   private static String internalName(Class<?> type) {
@@ -305,18 +1150,6 @@ public class Proxy2 {
     return array;
   }
   
-  private static final boolean IS_1_8;
-  static {
-    boolean is1_8;
-    try {
-      Class.forName("java.util.Spliterator");  // 1.8 ?
-      is1_8 = true;
-    } catch (ClassNotFoundException e) {
-      is1_8 = false;
-    }
-    IS_1_8 = is1_8;
-  }
-  
   /**
    * Create a factory that will create anonymous proxy instances with several fields described by
    * the parameter types of {@code methodType} and implementing an interface described by
@@ -336,28 +1169,518 @@ public class Proxy2 {
    * @see #createAnonymousProxyFactory(Class, Class[], ProxyHandler)
    */
   public static MethodHandle createAnonymousProxyFactory(Lookup lookup, MethodType methodType, ProxyHandler handler) {
+    return factory(defineProxyClass(lookup, methodType, handler), methodType);
+  }
+  
+  /**
+   * Create a factory that will create anonymous proxy instances with several fields described by
+   * the parameter types of {@code methodType} and implementing the interface described by
+   * the return type of {@code methodType} and the interfaces {@code interfaces}.
+   * 
+   * The proxy class implements once each method of the interfaces with the same name and parameter types,
+   * the method passed to {@link ProxyHandler#bootstrap(ProxyContext) bootstrap} is the declaration
+   * of the most specific interface, or the first one with the most specific return type
+   * if the declarations are unrelated, and the other return types are implemented by bridges.
+   * A default method is not implemented unless {@link ProxyHandler#override(Method) override} returns true
+   * or if the interfaces provide several unrelated declarations, in which case the method is implemented
+   * like an abstract method.
+   * 
+   * @param lookup access token used to access to the interface methods
+   * @param methodType the parameter types of this {@link MethodType} described the type of the fields
+   *                   and the return type the main interface implemented by the proxy.
+   * @param interfaces the other interfaces implemented by the proxy.
+   * @param handler an interface that specifies how a proxy method is linked to its implementation.
+   * @return a method handle that if {@link MethodHandle#invokeExact(Object...) called} will create
+   *         a proxy instance of a class implementing all the interfaces.
+   * @throws IllegalArgumentException if an interface is not visible from the lookup object, is not an interface
+   *         or if two declarations of a method have return types that are not compatible.
+   * 
+   * @see #createAnonymousProxyFactory(Lookup, MethodType, ProxyHandler)
+   */
+  public static MethodHandle createAnonymousProxyFactory(Lookup lookup, MethodType methodType, Class<?>[] interfaces, ProxyHandler handler) {
+    return factory(defineProxyClass(lookup, methodType, interfaces, handler), methodType);
+  }
+  
+  /**
+   * Define a proxy class like {@link #createAnonymousProxyFactory(Lookup, MethodType, ProxyHandler)}.
+   * @return a lookup on the proxy class, with a private access if the backend is able to provide one.
+   */
+  static Lookup defineProxyClass(Lookup lookup, MethodType methodType, ProxyHandler handler) {
+    return defineProxyClass(lookup, methodType, NO_INTERFACES, handler);
+  }
+  
+  private static final Class<?>[] NO_INTERFACES = new Class<?>[0];
+  
+  /**
+   * Create a factory that will create anonymous proxy instances of a subclass of the class
+   * described by the return type of {@code methodType}, with several fields described by
+   * the parameter types of {@code methodType}.
+   * The returned {@link MethodHandle} takes the values of the fields followed by the arguments
+   * of {@code constructor}, the fields are initialized before {@code constructor} is called,
+   * so the proxy methods can be called by the super constructor.
+   * 
+   * The abstract methods of the class are linked by {@link ProxyHandler#bootstrap(ProxyContext) bootstrap},
+   * the other public or protected non final methods are implemented only if
+   * {@link ProxyHandler#override(Method) override} returns true, the implementation of the super class
+   * is available with {@link ProxyContext#superImplementation()}.
+   * 
+   * @param lookup access token used to access to the class and its methods
+   * @param methodType the parameter types of this {@link MethodType} described the type of the fields
+   *                   and the return type the class extended by the proxy.
+   * @param constructor the constructor of the class called by the constructor of the proxy.
+   * @param handler an interface that specifies how a proxy method is linked to its implementation.
+   * @return a method handle that if {@link MethodHandle#invokeExact(Object...) called} will create
+   *         a proxy instance of a subclass of the return type of {@code methodType}.
+   * @throws IllegalArgumentException if the class is not visible from the lookup object, is an interface,
+   *         is final, if {@code constructor} is not a public or protected constructor of the class
+   *         or if the class has a package private abstract method.
+   * 
+   * @see #createAnonymousProxyFactory(Lookup, MethodType, ProxyHandler)
+   */
+  public static MethodHandle createSubclassProxyFactory(Lookup lookup, MethodType methodType, Constructor<?> constructor, ProxyHandler handler) {
+    Class<?> superclass = methodType.returnType();
+    if (superclass.isInterface() || superclass.isPrimitive() || superclass.isArray() || Modifier.isFinal(superclass.getModifiers())) {
+      throw new IllegalArgumentException(superclass + " can not be subclassed");
+    }
+    if (lookup.in(superclass).lookupModes() == 0) {
+      throw new IllegalArgumentException("class " + superclass + " is not visible from " + lookup);
+    }
+    int modifiers = constructor.getModifiers();
+    if (constructor.getDeclaringClass() != superclass || (!Modifier.isPublic(modifiers) && !Modifier.isProtected(modifiers))) {
+      throw new IllegalArgumentException(constructor + " is not a public or protected constructor of " + superclass);
+    }
+    
+    ProxyBackend backend = ProxyBackend.INSTANCE;
+    Template template = template(backend, lookup, methodType, NO_INTERFACES, constructor, handler);
+    MethodHandle bootstrap = MethodHandles.filterReturnValue(CONTEXT_CREATE,
+        MethodHandles.insertArguments(BOOTSTRAP_MH, 0, handler));
+    Lookup proxyLookup = backend.defineProxyClass(lookup, superclass, template, bootstrap);
+    proxyClassDefined(superclass, proxyLookup, template);
+    return factory(proxyLookup, methodType.appendParameterTypes(constructor.getParameterTypes()));
+  }
+  
+  /**
+   * Define a proxy class like {@link #createAnonymousProxyFactory(Lookup, MethodType, Class[], ProxyHandler)}.
+   * @return a lookup on the proxy class, with a private access if the backend is able to provide one.
+   */
+  static Lookup defineProxyClass(Lookup lookup, MethodType methodType, Class<?>[] interfaces, ProxyHandler handler) {
     Class<?> interfaze = methodType.returnType();
     if (lookup.in(interfaze).lookupModes() == 0) {
       throw new IllegalArgumentException("interface " + interfaze + " is not visible from " + lookup);
     }
-
-    // if the proxy is in java.lang.invoke and the interface is not visible, the OpenJDK 7 VM crashes !
-    String proxyName = (!IS_1_8 && !Modifier.isPublic(interfaze.getModifiers()))?
-        "com/github/forax/proxy2/Foo":   
-        "java/lang/invoke/Foo";
+    for(Class<?> otherInterface: interfaces) {
+      if (!otherInterface.isInterface()) {
+        throw new IllegalArgumentException(otherInterface + " is not an interface");
+      }
+      if (lookup.in(otherInterface).lookupModes() == 0) {
+        throw new IllegalArgumentException("interface " + otherInterface + " is not visible from " + lookup);
+      }
+    }
+    
+    ProxyBackend backend = ProxyBackend.INSTANCE;
+    Template template = template(backend, lookup, methodType, interfaces, handler);
+    MethodHandle bootstrap = MethodHandles.filterReturnValue(CONTEXT_CREATE,
+        MethodHandles.insertArguments(BOOTSTRAP_MH, 0, handler));
+    Lookup proxyLookup = backend.defineProxyClass(lookup, interfaze, template, bootstrap);
+    proxyClassDefined(interfaze, proxyLookup, template);
+    return proxyLookup;
+  }
+  
+  private static void proxyClassDefined(Class<?> interfaze, Lookup proxyLookup, Template template) {
+    ProxyMonitor monitor = Proxy2.monitor;
+    if (monitor != null) {
+      monitor.proxyClassDefined(interfaze, proxyLookup.lookupClass(), template.data.length);
+    }
+  }
+  
+  // referenced by a method handle
+  static CallSite bootstrap(ProxyHandler handler, ProxyContext context) throws Throwable {
+    ProxyMonitor monitor = Proxy2.monitor;
+    if (monitor == null) {
+      return handler.bootstrap(context);
+    }
+    long start = System.nanoTime();
+    CallSite callSite = handler.bootstrap(context);
+    monitor.methodLinked(context.method(), System.nanoTime() - start);
+    return callSite;
+  }
+  
+  static MethodHandle factory(Lookup proxyLookup, MethodType methodType) {
+    try {
+      return proxyLookup.findStatic(proxyLookup.lookupClass(), "0-^-0", methodType);
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new AssertionError(e);
+    }
+  }
+  
+  /**
+   * The result of {@link Proxy2#createEagerlyLinkedProxyFactory(Lookup, MethodType, ProxyHandler, Executor)},
+   * a proxy factory whose methods are linked before the first call.
+   */
+  public static class ProxyLinkage {
+    MethodHandle factory;  // initialized once the proxy class is defined
+    final ConcurrentHashMap<Method, FutureTask<CallSite>> tasks = new ConcurrentHashMap<>();
+    final ConcurrentHashMap<Method, Long> linkTimes = new ConcurrentHashMap<>();
+    
+    ProxyLinkage() {
+      // created by Proxy2
+    }
+    
+    /**
+     * Returns a method handle that creates the proxy instances.
+     * @return a method handle that creates the proxy instances.
+     * 
+     * @see Proxy2#createAnonymousProxyFactory(Lookup, MethodType, ProxyHandler)
+     */
+    public MethodHandle factory() {
+      return factory;
+    }
     
+    /**
+     * Returns the time in nanoseconds spent in {@link ProxyHandler#bootstrap(ProxyContext)}
+     * for each proxy method already linked.
+     * @return an unmodifiable view of the link time of each linked method.
+     */
+    public Map<Method, Long> linkTimes() {
+      return Collections.unmodifiableMap(linkTimes);
+    }
+    
+    /**
+     * Wait until all the proxy methods are linked.
+     * @return the time in nanoseconds spent to link each method.
+     * @throws InterruptedException if the current thread is interrupted while waiting.
+     * @throws UndeclaredThrowableException if the bootstrap of a method fails,
+     *         the same exception is thrown by the first call to the method.
+     */
+    public Map<Method, Long> awaitLinkage() throws InterruptedException {
+      for(FutureTask<CallSite> task: tasks.values()) {
+        try {
+          task.get();
+        } catch (ExecutionException e) {
+          throw new UndeclaredThrowableException(e.getCause());
+        }
+      }
+      return linkTimes();
+    }
+    
+    // referenced by a method handle, called by the bsm of the proxy class
+    static CallSite callSite(ProxyLinkage linkage, Lookup lookup, MethodType methodType, Method method) throws Throwable {
+      FutureTask<CallSite> task = linkage.tasks.get(method);
+      task.run();  // do nothing if the task is already running or done
+      try {
+        return task.get();
+      } catch(ExecutionException e) {
+        throw e.getCause();
+      }
+    }
+  }
+  
+  /**
+   * Create a factory of proxy instances like {@link #createAnonymousProxyFactory(Lookup, MethodType, ProxyHandler)}
+   * but link all the proxy methods when the factory is created instead of the first time each method is called.
+   * 
+   * If {@code executor} is null, all the {@link ProxyHandler#bootstrap(ProxyContext) bootstraps} are called
+   * by the current thread before this method returns, otherwise they are submitted to the executor
+   * and the first call of a method not yet linked links it in the calling thread
+   * or waits for the executor to finish linking it.
+   * If a bootstrap throws an exception, the exception is re-thrown by the first call to the proxy method.
+   * 
+   * @param lookup access token used to access to the interface methods
+   * @param methodType the parameter types of this {@link MethodType} described the type of the fields
+   *                   and the return type the interface implemented by the proxy. 
+   * @param handler an interface that specifies how a proxy method is linked to its implementation.
+   * @param executor the executor used to link the methods or null to link them in the current thread.
+   * @return a linkage object that provides the proxy factory and the link time of each method.
+   * @throws IllegalArgumentException if the proxy interface is not visible from the lookup object.
+   * @throws UnsupportedOperationException if the class definition backend can not provide
+   *         a private access to the proxy class.
+   * 
+   * @see #createAnonymousProxyFactory(Lookup, MethodType, ProxyHandler)
+   */
+  public static ProxyLinkage createEagerlyLinkedProxyFactory(Lookup lookup, MethodType methodType, ProxyHandler handler, Executor executor) {
+    Class<?> interfaze = methodType.returnType();
+    if (lookup.in(interfaze).lookupModes() == 0) {
+      throw new IllegalArgumentException("interface " + interfaze + " is not visible from " + lookup);
+    }
+    
+    ProxyBackend backend = ProxyBackend.INSTANCE;
+    if (!backend.hasPrivateAccess()) {  // checked before the proxy class is defined
+      throw new UnsupportedOperationException("eager linking is not supported by the backend " + backend.getClass().getSimpleName());
+    }
+    Template template = template(backend, lookup, methodType, handler);
+    ProxyLinkage linkage = new ProxyLinkage();
+    MethodHandle bootstrap = LINKAGE_CALLSITE.bindTo(linkage);
+    Lookup proxyLookup = backend.defineProxyClass(lookup, interfaze, template, bootstrap);
+    proxyClassDefined(interfaze, proxyLookup, template);
+    linkage.factory = factory(proxyLookup, methodType);
+    
+    // the type of the invokedynamic of each method, see generateTemplate()
+    MethodType prefix = methodType.changeReturnType(void.class).insertParameterTypes(0, Object.class);
+    for(Method method: template.methods) {
+      MethodType indyType = prefix.appendParameterTypes(method.getParameterTypes()).changeReturnType(method.getReturnType());
+      ProxyContext context = ProxyContext.create(proxyLookup, indyType, method);
+      linkage.tasks.put(method, new FutureTask<>(new Callable<CallSite>() {  // no lambda, see retro-weaving
+        @Override
+        public CallSite call() throws Exception {
+          long start = System.nanoTime();
+          CallSite callSite;
+          try {
+            callSite = handler.bootstrap(context);
+          } catch(Exception | Error e) {
+            throw e;
+          } catch(Throwable e) {
+            throw new UndeclaredThrowableException(e);
+          }
+          long nanos = System.nanoTime() - start;
+          linkage.linkTimes.put(method, nanos);
+          ProxyMonitor monitor = Proxy2.monitor;
+          if (monitor != null) {
+            monitor.methodLinked(method, nanos);
+          }
+          return callSite;
+        }
+      }));
+    }
+    for(FutureTask<CallSite> task: linkage.tasks.values()) {
+      if (executor == null) {
+        task.run();
+      } else {
+        executor.execute(task);
+      }
+    }
+    return linkage;
+  }
+  
+  /**
+   * Find the template of the proxy class, either in the template cache,
+   * or as a resource generated ahead of time, or by generating it.
+   */
+  static Template template(ProxyBackend backend, Lookup lookup, MethodType methodType, ProxyHandler handler) {
+    return template(backend, lookup, methodType, NO_INTERFACES, handler);
+  }
+  
+  /**
+   * Find the template of a proxy class that also implements {@code otherInterfaces}.
+   */
+  static Template template(ProxyBackend backend, Lookup lookup, MethodType methodType, Class<?>[] otherInterfaces, ProxyHandler handler) {
+    return template(backend, lookup, methodType, otherInterfaces, null, handler);
+  }
+  
+  /**
+   * Find the template of a proxy class, if {@code superConstructor} is not null, the proxy class
+   * is a subclass of the return type of {@code methodType} and {@code otherInterfaces} is ignored.
+   */
+  static Template template(ProxyBackend backend, Lookup lookup, MethodType methodType, Class<?>[] otherInterfaces,
+                           Constructor<?> superConstructor, ProxyHandler handler) {
+    Class<?> interfaze = methodType.returnType();  // or the super class
+    Class<?>[] interfaces;
+    LinkedHashMap<String, ArrayList<Method>> declarationMap;
+    if (superConstructor == null) {
+      LinkedHashSet<Class<?>> interfaceSet = new LinkedHashSet<>();
+      interfaceSet.add(interfaze);
+      Collections.addAll(interfaceSet, otherInterfaces);
+      interfaces = interfaceSet.toArray(new Class<?>[interfaceSet.size()]);
+      declarationMap = declarations(interfaces);
+    } else {
+      interfaces = NO_INTERFACES;
+      declarationMap = classDeclarations(interfaze);
+    }
+    
+    // ask the handler, the bytecode only depends on the answers
+    boolean[] mutables = new boolean[methodType.parameterCount()];
+    for(int i = 0; i < mutables.length; i++) {
+      mutables[i] = handler.isMutable(i, methodType.parameterType(i));
+    }
+    ArrayList<Method> methodList = new ArrayList<>();
+    ArrayList<Method[]> bridgeList = new ArrayList<>();
+    for(ArrayList<Method> declarations: declarationMap.values()) {
+      Method method = selectDeclaration(declarations);
+      // a method inherited from unrelated interfaces is always implemented
+      if (!Modifier.isAbstract(method.getModifiers()) && mostSpecific(declarations) == method && !handler.override(method)) {
+        continue;
+      }
+      methodList.add(method);
+      bridgeList.add(bridges(method, declarations));
+    }
+    // a handler that overrides all methods, like a delegating handler, keeps the identity based
+    // equals, hashCode and toString, so the methods of java.lang.Object must be selected explicitly
+    if (!handler.override(UNKNOWN_METHOD)) {
+      for(Method method: OBJECT_METHODS) {
+        if (!isDeclared(methodList, method) && handler.override(method)) {
+          methodList.add(method);
+          bridgeList.add(NO_BRIDGES);
+        }
+      }
+    }
+    Method[] methods = methodList.toArray(new Method[methodList.size()]);
+    Method[][] bridges = bridgeList.toArray(new Method[bridgeList.size()][]);
+    Intrinsic[] intrinsics = new Intrinsic[methods.length];
+    ArrayList<Method> linkedMethodList = new ArrayList<>();
+    for(int i = 0; i < methods.length; i++) {
+      Method method = methods[i];
+      Intrinsic intrinsic = (handler instanceof ProxyHandler.Intrinsics)?
+          ((ProxyHandler.Intrinsics)handler).intrinsic(method, methodType): null;
+      if (intrinsic == null) {
+        linkedMethodList.add(method);
+      } else {
+        intrinsic.checkSignature(method, methodType);
+      }
+      intrinsics[i] = intrinsic;
+    }
+    Method[] linkedMethods = linkedMethodList.toArray(new Method[linkedMethodList.size()]);
+    
+    String proxyName = backend.proxyName(lookup, interfaze);
+    ConcurrentHashMap<String, Template> templates = TEMPLATE_CACHE.get(interfaze);
+    String templateKey = templateKey(backend, proxyName, methodType, interfaces, superConstructor, mutables, methods, intrinsics);
+    Template template = templates.get(templateKey);
+    if (template != null) {
+      return template;
+    }
+    template = Template.load(interfaze, templateKey, linkedMethods);
+    if (template == null) {
+      template = generateTemplate(backend, proxyName, interfaces, superConstructor, methodType, mutables, methods, bridges, intrinsics, linkedMethods, templateKey);
+      ProxyMonitor monitor = Proxy2.monitor;
+      if (monitor != null) {
+        monitor.templateGenerated(interfaze, template.data.length);
+      }
+    }
+    Template previous = templates.putIfAbsent(templateKey, template);
+    return (previous != null)? previous: template;
+  }
+  
+  /**
+   * The bytecode of a proxy class with the indexes of the constant pool entries
+   * that are patched to bind the class to a handler.
+   * The bytecode only depends on the interface, the field types, the mutability of the fields
+   * and the set of implemented methods, so it can be shared by all proxy classes with the same shape.
+   * 
+   * A template can also be generated ahead of time and stored as a resource
+   * named {@code META-INF/proxy2/interfaceName/hash} where hash is the hash of the template key.
+   */
+  static final class Template {
+    private static final int MAGIC = 0x50524F58;  // PROX
+    
+    final String key;
+    final byte[] data;
+    final int constantPoolSize;
+    final int mhHolderCPIndex;
+    final Method[] methods;
+    final int[] methodHolderCPIndexes;
+    
+    Template(String key, byte[] data, int constantPoolSize, int mhHolderCPIndex, Method[] methods, int[] methodHolderCPIndexes) {
+      this.key = key;
+      this.data = data;
+      this.constantPoolSize = constantPoolSize;
+      this.mhHolderCPIndex = mhHolderCPIndex;
+      this.methods = methods;
+      this.methodHolderCPIndexes = methodHolderCPIndexes;
+    }
+    
+    static String resourceName(Class<?> interfaze, String key) {
+      return "META-INF/proxy2/" + interfaze.getName() + '/' + Integer.toHexString(key.hashCode());
+    }
+    
+    void write(OutputStream output) throws IOException {
+      DataOutputStream out = new DataOutputStream(output);
+      out.writeInt(MAGIC);
+      out.writeUTF(key);
+      out.writeInt(constantPoolSize);
+      out.writeInt(mhHolderCPIndex);
+      out.writeInt(methodHolderCPIndexes.length);
+      for(int methodHolderCPIndex: methodHolderCPIndexes) {
+        out.writeInt(methodHolderCPIndex);
+      }
+      out.writeInt(data.length);
+      out.write(data);
+      out.flush();
+    }
+    
+    /**
+     * Load a template generated ahead of time.
+     * The methods are not stored, the template key guarantees that they are the same.
+     * @return the template or null if there is no resource corresponding to the key.
+     */
+    static Template load(Class<?> interfaze, String key, Method[] methods) {
+      ClassLoader loader = interfaze.getClassLoader();
+      String name = resourceName(interfaze, key);
+      InputStream input = (loader == null)? ClassLoader.getSystemResourceAsStream(name): loader.getResourceAsStream(name);
+      if (input == null) {
+        return null;
+      }
+      try(DataInputStream in = new DataInputStream(input)) {
+        if (in.readInt() != MAGIC || !in.readUTF().equals(key)) {  // hash collision
+          return null;
+        }
+        int constantPoolSize = in.readInt();
+        int mhHolderCPIndex = in.readInt();
+        int[] methodHolderCPIndexes = new int[in.readInt()];
+        for(int i = 0; i < methodHolderCPIndexes.length; i++) {
+          methodHolderCPIndexes[i] = in.readInt();
+        }
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return new Template(key, data, constantPoolSize, mhHolderCPIndex, methods, methodHolderCPIndexes);
+      } catch(IOException e) {  // corrupted resource, generate the template at runtime
+        return null;
+      }
+    }
+  }
+  
+  private static final ClassValue<ConcurrentHashMap<String, Template>> TEMPLATE_CACHE =
+      new ClassValue<ConcurrentHashMap<String, Template>>() {
+        @Override
+        protected ConcurrentHashMap<String, Template> computeValue(Class<?> type) {
+          return new ConcurrentHashMap<>();
+        }
+      };
+  
+  private static String templateKey(ProxyBackend backend, String proxyName, MethodType methodType, Class<?>[] interfaces, Constructor<?> superConstructor,
+                                    boolean[] mutables, Method[] methods, Intrinsic[] intrinsics) {
+    StringBuilder builder = new StringBuilder();
+    builder.append(backend.usesClassData()? "hidden:": "unsafe:").append(proxyName).append('|');
+    builder.append(methodType.toMethodDescriptorString()).append('|');
+    if (superConstructor != null) {
+      builder.append("extends ").append(Type.getConstructorDescriptor(superConstructor)).append('|');
+    }
+    for(int i = 1; i < interfaces.length; i++) {  // the first interface is the return type of methodType
+      builder.append(interfaces[i].getName()).append(';');
+    }
+    builder.append('|');
+    for(boolean mutable: mutables) {
+      builder.append(mutable? 'M': 'F');
+    }
+    builder.append('|');
+    for(int i = 0; i < methods.length; i++) {
+      Method method = methods[i];
+      builder.append(method.getDeclaringClass().getName()).append('.')
+             .append(method.getName()).append(Type.getMethodDescriptor(method));
+      if (intrinsics[i] != null) {
+        builder.append('=').append(intrinsics[i]);
+      }
+      builder.append(';');
+    }
+    return builder.toString();
+  }
+  
+  private static Template generateTemplate(ProxyBackend backend, String proxyName, Class<?>[] interfaces, Constructor<?> superConstructor, MethodType methodType,
+                                           boolean[] mutables, Method[] methods, Method[][] bridges, Intrinsic[] intrinsics, Method[] linkedMethods, String templateKey) {
     ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_FRAMES|ClassWriter.COMPUTE_MAXS);
-    writer.visit(V1_7, ACC_PUBLIC|ACC_SUPER|ACC_FINAL, proxyName, null, "java/lang/Object", new String[]{ internalName(interfaze) });
+    String superName = (superConstructor == null)? "java/lang/Object": internalName(superConstructor.getDeclaringClass());
+    writer.visit(V1_7, ACC_PUBLIC|ACC_SUPER|ACC_FINAL, proxyName, null, superName, internalNames(interfaces));
 
-    String initDesc;
+    // the fields are initialized before calling the super constructor
+    // so the methods called by the super constructor can use them
+    String fieldsDesc = methodType.changeReturnType(void.class).toMethodDescriptorString();
     {
-      initDesc = methodType.changeReturnType(void.class).toMethodDescriptorString();
+      MethodType initType = methodType.changeReturnType(void.class);
+      if (superConstructor != null) {
+        initType = initType.appendParameterTypes(superConstructor.getParameterTypes());
+      }
+      String initDesc = initType.toMethodDescriptorString();
       MethodVisitor init = writer.visitMethod(ACC_PUBLIC, "<init>", initDesc, null, null);
-      String factoryDesc = methodType.toMethodDescriptorString();
+      String factoryDesc = initType.changeReturnType(methodType.returnType()).toMethodDescriptorString();
       MethodVisitor factory = writer.visitMethod(ACC_PUBLIC|ACC_STATIC, "0-^-0", factoryDesc, null, null);
       init.visitCode();
-      init.visitVarInsn(ALOAD, 0);
-      init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
       factory.visitCode();
       factory.visitTypeInsn(NEW, proxyName);
       factory.visitInsn(DUP);
@@ -366,7 +1689,7 @@ public class Proxy2 {
       for(int i = 0; i < methodType.parameterCount(); i++) {
         Class<?> boundType = methodType.parameterType(i);
         String fieldName = "arg" + i;
-        int finalFlag = handler.isMutable(i, boundType)? 0: ACC_FINAL;
+        int finalFlag = mutables[i]? 0: ACC_FINAL;
         FieldVisitor fv = writer.visitField(ACC_PRIVATE|finalFlag, fieldName, Type.getDescriptor(boundType), null, null);
         fv.visitEnd();
 
@@ -380,6 +1703,18 @@ public class Proxy2 {
         slot += (boundType == long.class || boundType == double.class)? 2: 1;
       }
 
+      init.visitVarInsn(ALOAD, 0);
+      String superConstructorDesc = "()V";
+      if (superConstructor != null) {
+        for(Class<?> parameterType: superConstructor.getParameterTypes()) {
+          int loadOp = Type.getType(parameterType).getOpcode(ILOAD);
+          init.visitVarInsn(loadOp, slot);
+          factory.visitVarInsn(loadOp, slot - 1);
+          slot += (parameterType == long.class || parameterType == double.class)? 2: 1;
+        }
+        superConstructorDesc = Type.getConstructorDescriptor(superConstructor);
+      }
+      init.visitMethodInsn(INVOKESPECIAL, superName, "<init>", superConstructorDesc, false);
       init.visitInsn(RETURN);
       factory.visitMethodInsn(INVOKESPECIAL, proxyName, "<init>", initDesc, false);
       factory.visitInsn(ARETURN);
@@ -391,14 +1726,51 @@ public class Proxy2 {
     }
     
     String mhPlaceHolder = "<<MH_HOLDER>>";
-    int mhHolderCPIndex = writer.newConst(mhPlaceHolder);
+    int mhHolderCPIndex = backend.usesClassData()? -1: writer.newConst(mhPlaceHolder);
 
-    Handle BSM =
-        new Handle(H_INVOKESTATIC, proxyName, "bsm",
-            MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class,
-                MethodHandle.class, Method.class).toMethodDescriptorString());
-    { // bsm
-      MethodVisitor mv = writer.visitMethod(ACC_PRIVATE|ACC_STATIC, "bsm", BSM.getDesc(), null, null);
+    // no bootstrap method if all the methods are intrinsics
+    ClassVisitor bsmWriter = (linkedMethods.length != 0)? writer: new ClassVisitor(ASM5) {
+      @Override
+      public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+        return new MethodVisitor(ASM5) { /* empty */ };
+      }
+    };
+    Handle BSM;
+    if (backend.usesClassData()) {
+      // the bootstrap method handle and the interface methods are stored in the class data
+      BSM = new Handle(H_INVOKESTATIC, proxyName, "bsm",
+          MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class,
+              int.class).toMethodDescriptorString());
+      MethodVisitor mv = bsmWriter.visitMethod(ACC_PRIVATE|ACC_STATIC, "bsm", BSM.getDesc(), null, null);
+      mv.visitCode();
+      mv.visitVarInsn(ALOAD, 0); // lookup
+      mv.visitLdcInsn("_");
+      mv.visitLdcInsn(Type.getType(Object[].class));
+      mv.visitMethodInsn(INVOKESTATIC, "java/lang/invoke/MethodHandles", "classData",
+          "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;", false);
+      mv.visitTypeInsn(CHECKCAST, "[Ljava/lang/Object;");
+      mv.visitVarInsn(ASTORE, 4);
+      mv.visitVarInsn(ALOAD, 4);
+      mv.visitInsn(ICONST_0);
+      mv.visitInsn(AALOAD);
+      mv.visitTypeInsn(CHECKCAST, "java/lang/invoke/MethodHandle"); // mh
+      mv.visitVarInsn(ALOAD, 0); // lookup
+      mv.visitVarInsn(ALOAD, 2); // method type
+      mv.visitVarInsn(ALOAD, 4);
+      mv.visitVarInsn(ILOAD, 3);
+      mv.visitInsn(AALOAD);
+      mv.visitTypeInsn(CHECKCAST, "java/lang/reflect/Method"); // method
+      mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/invoke/MethodHandle", "invokeExact",
+          "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/invoke/MethodType;Ljava/lang/reflect/Method;)Ljava/lang/invoke/CallSite;", false);
+      mv.visitInsn(ARETURN);
+      mv.visitMaxs(-1, -1);
+      mv.visitEnd();
+    } else {
+      // the bootstrap method handle and the interface methods are patched constants
+      BSM = new Handle(H_INVOKESTATIC, proxyName, "bsm",
+          MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class,
+              MethodHandle.class, Method.class).toMethodDescriptorString());
+      MethodVisitor mv = bsmWriter.visitMethod(ACC_PRIVATE|ACC_STATIC, "bsm", BSM.getDesc(), null, null);
       mv.visitCode();
       mv.visitVarInsn(ALOAD, 3); // mh
       mv.visitVarInsn(ALOAD, 0); // lookup
@@ -411,23 +1783,28 @@ public class Proxy2 {
       mv.visitEnd();
     }
     
-    Method[] methods = interfaze.getMethods();
-    int[] methodHolderCPIndexes = new int[methods.length];
-    for(int methodIndex = 0; methodIndex < methods.length; methodIndex++) {
-      Method method = methods[methodIndex];
-      int modifiers = method.getModifiers();
-      if (Modifier.isStatic(modifiers)) {
-        continue;
-      }
-      //FIXME add support of public methods of java.lang.Object
-      if (!Modifier.isAbstract(modifiers) && !handler.override(method)) {
-        continue;
-      }
+    int[] methodHolderCPIndexes = new int[linkedMethods.length];
+    int methodIndex = 0;
+    for(int m = 0; m < methods.length; m++) {
+      Method method = methods[m];
       String methodDesc = Type.getMethodDescriptor(method);
+      for(Method bridge: bridges[m]) {
+        generateBridge(writer, proxyName, method, bridge);
+      }
       MethodVisitor mv = writer.visitMethod(ACC_PUBLIC, method.getName(), methodDesc, null,
           internalNames(method.getExceptionTypes()));
-      mv.visitAnnotation("Ljava/lang/invoke/LambdaForm$Hidden;", true);
-      mv.visitAnnotation("Ljava/lang/invoke/ForceInline;", true);
+      if (intrinsics[m] != null) {
+        IntrinsicGenerator.generate(writer, mv, method, intrinsics[m], proxyName, methodType, mutables);
+        continue;
+      }
+      String hiddenAnnotation = backend.hiddenAnnotation();
+      if (hiddenAnnotation != null) {
+        mv.visitAnnotation(hiddenAnnotation, true);
+      }
+      String forceInlineAnnotation = backend.forceInlineAnnotation();
+      if (forceInlineAnnotation != null) {
+        mv.visitAnnotation(forceInlineAnnotation, true);
+      }
       mv.visitCode();
       mv.visitVarInsn(ALOAD, 0);
       for(int i = 0; i < methodType.parameterCount(); i++) {
@@ -440,42 +1817,36 @@ public class Proxy2 {
         mv.visitVarInsn(Type.getType(parameterType).getOpcode(ILOAD), slot);
         slot += (parameterType == long.class || parameterType == double.class)? 2: 1;
       }
-      String methodPlaceHolder = "<<METHOD_HOLDER " + methodIndex + ">>";
-      methodHolderCPIndexes[methodIndex] = writer.newConst(methodPlaceHolder);
-      mv.visitInvokeDynamicInsn(method.getName(),
-          "(Ljava/lang/Object;" + initDesc.substring(1, initDesc.length() - 2) + methodDesc.substring(1),
-          BSM, mhPlaceHolder, methodPlaceHolder);
+      String indyDesc = "(Ljava/lang/Object;" + fieldsDesc.substring(1, fieldsDesc.length() - 2) + methodDesc.substring(1);
+      if (backend.usesClassData()) {
+        mv.visitInvokeDynamicInsn(method.getName(), indyDesc, BSM, 1 + methodIndex);
+      } else {
+        String methodPlaceHolder = "<<METHOD_HOLDER " + methodIndex + ">>";
+        methodHolderCPIndexes[methodIndex] = writer.newConst(methodPlaceHolder);
+        mv.visitInvokeDynamicInsn(method.getName(), indyDesc, BSM, mhPlaceHolder, methodPlaceHolder);
+      }
       mv.visitInsn(Type.getReturnType(method).getOpcode(IRETURN));
       mv.visitMaxs(-1, -1);
       mv.visitEnd();
+      methodIndex++;
     }
     writer.visitEnd();
     byte[] data = writer.toByteArray();
 
     int constantPoolSize = writer.newConst("<<SENTINEL>>");
-    Object[] patches = new Object[constantPoolSize];
-    patches[mhHolderCPIndex] =  MethodHandles.filterReturnValue(CONTEXT_CREATE,
-        MethodHandles.insertArguments(BOOTSTRAP_MH, 0, handler));
-    for(int i = 0; i < methodHolderCPIndexes.length; i++) {
-      patches[methodHolderCPIndexes[i]] = methods[i];
-    }
-    Class<?> clazz = UNSAFE.defineAnonymousClass(interfaze, data, patches);
-    UNSAFE.ensureClassInitialized(clazz);
-    try {
-      return MethodHandles.publicLookup().findStatic(clazz, "0-^-0", methodType);
-    } catch (NoSuchMethodException | IllegalAccessException e) {
-      throw new AssertionError(e);
-    }
+    return new Template(templateKey, data, constantPoolSize, mhHolderCPIndex, linkedMethods, methodHolderCPIndexes);
   }
 
-  private static final MethodHandle BOOTSTRAP_MH, CONTEXT_CREATE;
+  private static final MethodHandle BOOTSTRAP_MH, CONTEXT_CREATE, LINKAGE_CALLSITE;
   static {
     Lookup lookup = MethodHandles.lookup();
     try {
-      BOOTSTRAP_MH = lookup.findVirtual(ProxyHandler.class, "bootstrap",
-          MethodType.methodType(CallSite.class, ProxyContext.class));
+      BOOTSTRAP_MH = lookup.findStatic(Proxy2.class, "bootstrap",
+          MethodType.methodType(CallSite.class, ProxyHandler.class, ProxyContext.class));
       CONTEXT_CREATE = lookup.findStatic(ProxyContext.class, "create",
           MethodType.methodType(ProxyContext.class, Lookup.class, MethodType.class, Method.class));
+      LINKAGE_CALLSITE = lookup.findStatic(ProxyLinkage.class, "callSite",
+          MethodType.methodType(CallSite.class, ProxyLinkage.class, Lookup.class, MethodType.class, Method.class));
     } catch (NoSuchMethodException|IllegalAccessException e) {
       throw new AssertionError(e);
     }
@@ -0,0 +1,373 @@
+package com.github.forax.proxy2;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.UndeclaredThrowableException;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import com.github.forax.proxy2.Proxy2.Template;
+
+import sun.misc.Unsafe;
+
+/**
+ * Define a proxy class from its bytecode and bind it to the bootstrap method handle
+ * and to the interface methods it implements.
+ *
+ * There are two implementations, one that uses {@code Unsafe.defineAnonymousClass}
+ * and constant pool patching, available until Java 16, and one that uses
+ * {@code Lookup.defineHiddenClassWithClassData} and {@code MethodHandles.classData},
+ * available since Java 16.
+ * The implementation can be chosen with the system property {@code com.github.forax.proxy2.backend}
+ * (either "unsafe" or "hidden"), by default the hidden class backend is used if available.
+ *
+ * Only the Unsafe backend marks the proxy methods with the annotations {@code @ForceInline} and {@code @Hidden}
+ * of java.lang.invoke, the VM ignores the annotations of jdk.internal.vm.annotation for the classes
+ * defined by an application class loader, so the proxy methods of the hidden class backend are hidden
+ * from the stack traces because the proxy class is a hidden class but are not forced to be inlined.
+ */
+abstract class ProxyBackend {
+  /**
+   * Returns the internal name of the proxy class.
+   * @param lookup the lookup used to create the proxy.
+   * @param interfaze the interface implemented by the proxy.
+   * @return the internal name of the proxy class.
+   */
+  abstract String proxyName(Lookup lookup, Class<?> interfaze);
+
+  /**
+   * Returns true if the generated bootstrap method should get the bootstrap method handle
+   * and the interface methods from the class data instead of from patched constants.
+   * @return true if the proxy class uses the class data.
+   */
+  abstract boolean usesClassData();
+
+  /**
+   * Returns true if the lookup returned by {@link #defineProxyClass(Lookup, Class, Template, MethodHandle)}
+   * has a private access to the proxy class.
+   * @return true if the lookup on the proxy class has a private access.
+   */
+  abstract boolean hasPrivateAccess();
+
+  /**
+   * Returns the descriptor of the annotation that hides a method from the stack traces.
+   * @return the descriptor of the annotation that hides a method from the stack traces
+   *         or null if the backend can not use such annotation.
+   */
+  abstract String hiddenAnnotation();
+
+  /**
+   * Returns the descriptor of the annotation that forces the JIT to inline a method.
+   * @return the descriptor of the annotation that forces the JIT to inline a method
+   *         or null if the backend can not use such annotation.
+   */
+  abstract String forceInlineAnnotation();
+
+  /**
+   * Define and initialize a proxy class.
+   * @param lookup the lookup used to create the proxy.
+   * @param interfaze the interface implemented by the proxy.
+   * @param template the bytecode of the proxy class.
+   * @param bootstrap the method handle called by the bootstrap method of the proxy class.
+   * @return a lookup on the proxy class, with a private access if the backend is able to provide one.
+   */
+  abstract Lookup defineProxyClass(Lookup lookup, Class<?> interfaze, Template template, MethodHandle bootstrap);
+
+  static final ProxyBackend INSTANCE;
+  static {
+    String backend = System.getProperty("com.github.forax.proxy2.backend");
+    if ("unsafe".equals(backend)) {
+      INSTANCE = new UnsafeBackend();
+    } else {
+      if ("hidden".equals(backend) || HiddenClassBackend.isAvailable()) {
+        INSTANCE = new HiddenClassBackend();
+      } else {
+        INSTANCE = new UnsafeBackend();
+      }
+    }
+  }
+
+  static class UnsafeBackend extends ProxyBackend {
+    private static final Unsafe UNSAFE;
+    private static final Lookup IMPL_LOOKUP;
+    private static final MethodHandle DEFINE_ANONYMOUS_CLASS, ENSURE_CLASS_INITIALIZED;
+    static {
+      Unsafe unsafe;
+      try {
+        Field unsafeField = Unsafe.class.getDeclaredField("theUnsafe");
+        unsafeField.setAccessible(true);
+        unsafe =  (Unsafe)unsafeField.get(null);
+      } catch (NoSuchFieldException|IllegalAccessException e) {
+        throw new AssertionError(e);
+      }
+      UNSAFE = unsafe;
+
+      // the lookup of java.lang.invoke, used to get a private lookup on the anonymous classes
+      Lookup implLookup;
+      try {
+        Field implLookupField = Lookup.class.getDeclaredField("IMPL_LOOKUP");
+        implLookup = (Lookup)UNSAFE.getObject(UNSAFE.staticFieldBase(implLookupField), UNSAFE.staticFieldOffset(implLookupField));
+      } catch (NoSuchFieldException | RuntimeException e) {
+        implLookup = null;
+      }
+      IMPL_LOOKUP = implLookup;
+
+      // use method handles, defineAnonymousClass doesn't exist anymore in recent JDKs
+      Lookup lookup = MethodHandles.publicLookup();
+      try {
+        DEFINE_ANONYMOUS_CLASS = lookup.findVirtual(Unsafe.class, "defineAnonymousClass",
+            MethodType.methodType(Class.class, Class.class, byte[].class, Object[].class)).bindTo(UNSAFE);
+        ENSURE_CLASS_INITIALIZED = lookup.findVirtual(Unsafe.class, "ensureClassInitialized",
+            MethodType.methodType(void.class, Class.class)).bindTo(UNSAFE);
+      } catch (NoSuchMethodException | IllegalAccessException e) {
+        throw new UnsupportedOperationException("Unsafe.defineAnonymousClass is not supported by this VM", e);
+      }
+    }
+
+    private static final boolean IS_1_8;
+    static {
+      boolean is1_8;
+      try {
+        Class.forName("java.util.Spliterator");  // 1.8 ?
+        is1_8 = true;
+      } catch (ClassNotFoundException e) {
+        is1_8 = false;
+      }
+      IS_1_8 = is1_8;
+    }
+
+    @Override
+    String proxyName(Lookup lookup, Class<?> interfaze) {
+      // if the proxy is in java.lang.invoke and the interface is not visible, the OpenJDK 7 VM crashes !
+      return (!IS_1_8 && !Modifier.isPublic(interfaze.getModifiers()))?
+          "com/github/forax/proxy2/Foo":
+          "java/lang/invoke/Foo";
+    }
+
+    @Override
+    boolean usesClassData() {
+      return false;
+    }
+
+    @Override
+    boolean hasPrivateAccess() {
+      return IMPL_LOOKUP != null;
+    }
+
+    @Override
+    String hiddenAnnotation() {
+      return "Ljava/lang/invoke/LambdaForm$Hidden;";
+    }
+
+    @Override
+    String forceInlineAnnotation() {
+      return "Ljava/lang/invoke/ForceInline;";
+    }
+
+    @Override
+    Lookup defineProxyClass(Lookup lookup, Class<?> interfaze, Template template, MethodHandle bootstrap) {
+      Object[] patches = new Object[template.constantPoolSize];
+      patches[template.mhHolderCPIndex] = bootstrap;
+      for(int i = 0; i < template.methodHolderCPIndexes.length; i++) {
+        patches[template.methodHolderCPIndexes[i]] = template.methods[i];
+      }
+      try {
+        Class<?> clazz = (Class<?>)DEFINE_ANONYMOUS_CLASS.invokeExact(interfaze, template.data, patches);
+        ENSURE_CLASS_INITIALIZED.invokeExact(clazz);
+        return (IMPL_LOOKUP != null)? IMPL_LOOKUP.in(clazz): MethodHandles.publicLookup().in(clazz);
+      } catch(RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new UndeclaredThrowableException(e);
+      }
+    }
+  }
+
+  static class HiddenClassBackend extends ProxyBackend {
+    private static final int FULL_PRIVILEGE = Lookup.PRIVATE | 0x10;  // 0x10 is Lookup.MODULE (Java 9)
+    private static final Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodHandle PRIVATE_LOOKUP_IN, DEFINE_CLASS, DEFINE_HIDDEN_CLASS_WITH_CLASS_DATA;
+    static {
+      // use method handles, this code must compile with Java 7
+      Lookup lookup = MethodHandles.publicLookup();
+      MethodHandle privateLookupIn, defineClass, defineHiddenClassWithClassData;
+      try {
+        privateLookupIn = lookup.findStatic(MethodHandles.class, "privateLookupIn",
+            MethodType.methodType(Lookup.class, Class.class, Lookup.class));
+        defineClass = lookup.findVirtual(Lookup.class, "defineClass", MethodType.methodType(Class.class, byte[].class));
+        Class<?> classOptionArray = Class.forName("[Ljava.lang.invoke.MethodHandles$Lookup$ClassOption;");
+        defineHiddenClassWithClassData = MethodHandles.insertArguments(
+            lookup.findVirtual(Lookup.class, "defineHiddenClassWithClassData",
+                MethodType.methodType(Lookup.class, byte[].class, Object.class, boolean.class, classOptionArray)),
+            4, Array.newInstance(classOptionArray.getComponentType(), 0));
+      } catch (NoSuchMethodException | IllegalAccessException | ClassNotFoundException e) {
+        privateLookupIn = defineClass = defineHiddenClassWithClassData = null;
+      }
+      PRIVATE_LOOKUP_IN = privateLookupIn;
+      DEFINE_CLASS = defineClass;
+      DEFINE_HIDDEN_CLASS_WITH_CLASS_DATA = defineHiddenClassWithClassData;
+    }
+
+    static boolean isAvailable() {
+      return DEFINE_HIDDEN_CLASS_WITH_CLASS_DATA != null;
+    }
+
+    HiddenClassBackend() {
+      if (!isAvailable()) {
+        throw new UnsupportedOperationException("Lookup.defineHiddenClassWithClassData is not supported by this VM");
+      }
+    }
+
+    private static boolean hasFullPrivilege(Lookup lookup) {
+      return (lookup.lookupModes() & FULL_PRIVILEGE) == FULL_PRIVILEGE;
+    }
+
+    /**
+     * Find the lookup that will define the hidden class, either the lookup of the user
+     * if it has a full privilege access, or the lookup of a host class defined in the package
+     * of the interface if the package of the interface is open to proxy2 (the packages of the unnamed
+     * modules are open), a private lookup on another module has no full privilege access but can
+     * define a class in the package.
+     * A public interface of a package not open to proxy2, like {@code java.lang.Runnable},
+     * is implemented by a proxy class defined in the package of proxy2 if the class loader of proxy2
+     * sees the same interface.
+     * @throws IllegalArgumentException if no lookup can define the proxy class.
+     */
+    private static Lookup hostLookup(Lookup lookup, Class<?> interfaze) {
+      if (hasFullPrivilege(lookup)) {
+        return lookup;
+      }
+      IllegalAccessException cause = null;
+      try {
+        Lookup privateLookup = (Lookup)PRIVATE_LOOKUP_IN.invokeExact(interfaze, LOOKUP);
+        if (hasFullPrivilege(privateLookup)) {
+          return privateLookup;
+        }
+        if ((privateLookup.lookupModes() & Lookup.PACKAGE) != 0) {
+          return hostClassLookup(privateLookup, interfaze);
+        }
+      } catch (IllegalAccessException e) {
+        cause = e;
+      } catch(RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new UndeclaredThrowableException(e);
+      }
+      if (isPublic(interfaze) && isVisibleFromProxy2(interfaze)) {
+        return LOOKUP;
+      }
+      throw new IllegalArgumentException("can not define a proxy class for " + interfaze + " from " + lookup +
+          ", use a lookup with a full privilege access on the package of the interface" +
+          " or, if the interface is in a named module, open its package to proxy2", cause);
+    }
+
+    private static final String HOST_CLASS_NAME = "Proxy2Host";
+
+    /**
+     * Returns the full privilege lookup of the host class of the package of the interface,
+     * the host class is defined by the private lookup the first time.
+     */
+    private static Lookup hostClassLookup(Lookup privateLookup, Class<?> interfaze) throws Throwable {
+      String interfaceName = interfaze.getName();
+      int index = interfaceName.lastIndexOf('.');
+      String hostName = (index == -1)? HOST_CLASS_NAME: interfaceName.substring(0, index + 1) + HOST_CLASS_NAME;
+      Class<?> host;
+      try {
+        host = Class.forName(hostName, false, interfaze.getClassLoader());
+      } catch(ClassNotFoundException e) {
+        try {
+          host = (Class<?>)DEFINE_CLASS.invokeExact(privateLookup, generateHostClass(hostName.replace('.', '/')));
+        } catch(LinkageError e2) {  // defined by another thread
+          host = Class.forName(hostName, false, interfaze.getClassLoader());
+        }
+      }
+      return (Lookup)privateLookup.findStatic(host, "lookup", MethodType.methodType(Lookup.class)).invokeExact();
+    }
+
+    // final class Proxy2Host { static Lookup lookup() { return MethodHandles.lookup(); } }
+    private static byte[] generateHostClass(String hostName) {
+      ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+      writer.visit(Opcodes.V1_7, Opcodes.ACC_SUPER|Opcodes.ACC_FINAL|Opcodes.ACC_SYNTHETIC, hostName, null, "java/lang/Object", null);
+      MethodVisitor mv = writer.visitMethod(Opcodes.ACC_STATIC, "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;", null, null);
+      mv.visitCode();
+      mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/invoke/MethodHandles", "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;", false);
+      mv.visitInsn(Opcodes.ARETURN);
+      mv.visitMaxs(-1, -1);
+      mv.visitEnd();
+      writer.visitEnd();
+      return writer.toByteArray();
+    }
+
+    // the interface and its enclosing classes are public
+    private static boolean isPublic(Class<?> type) {
+      for(Class<?> clazz = type; clazz != null; clazz = clazz.getEnclosingClass()) {
+        if (!Modifier.isPublic(clazz.getModifiers())) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static boolean isVisibleFromProxy2(Class<?> type) {
+      try {
+        return Class.forName(type.getName(), false, ProxyBackend.class.getClassLoader()) == type;
+      } catch (ClassNotFoundException e) {
+        return false;
+      }
+    }
+
+    @Override
+    String proxyName(Lookup lookup, Class<?> interfaze) {
+      String hostName = hostLookup(lookup, interfaze).lookupClass().getName();
+      int index = hostName.lastIndexOf('.');
+      return (index == -1)? "Foo": hostName.substring(0, index).replace('.', '/') + "/Foo";
+    }
+
+    @Override
+    boolean usesClassData() {
+      return true;
+    }
+
+    @Override
+    boolean hasPrivateAccess() {
+      return true;
+    }
+
+    // the annotations of jdk.internal.vm.annotation are only honored for classes defined
+    // by the boot or the platform class loader so they are not emitted.
+    // A hidden class is already hidden from the stack traces (unless -XX:+ShowHiddenFrames)
+    // and the proxy methods are not forced inline, they rely on being small enough
+    // to be inlined by the JIT (a field load by field followed by an invokedynamic).
+
+    @Override
+    String hiddenAnnotation() {
+      return null;
+    }
+
+    @Override
+    String forceInlineAnnotation() {
+      return null;
+    }
+
+    @Override
+    Lookup defineProxyClass(Lookup lookup, Class<?> interfaze, Template template, MethodHandle bootstrap) {
+      Object[] classData = new Object[1 + template.methods.length];
+      classData[0] = bootstrap;
+      System.arraycopy(template.methods, 0, classData, 1, template.methods.length);
+      try {
+        return (Lookup)DEFINE_HIDDEN_CLASS_WITH_CLASS_DATA.invokeExact(hostLookup(lookup, interfaze), template.data, (Object)classData, true);
+      } catch(RuntimeException | Error e) {
+        throw e;
+      } catch (Throwable e) {
+        throw new UndeclaredThrowableException(e);
+      }
+    }
+  }
+}
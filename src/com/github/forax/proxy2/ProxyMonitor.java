@@ -0,0 +1,81 @@
+package com.github.forax.proxy2;
+
+import java.lang.reflect.Method;
+
+/**
+ * Receive the events emitted by {@link Proxy2} and {@link MethodBuilder} when proxy classes are generated
+ * and when the proxy methods are linked.
+ * A monitor is installed with {@link Proxy2#setMonitor(ProxyMonitor)}.
+ *
+ * The methods of a monitor can be called concurrently by several threads
+ * and should not throw exceptions.
+ *
+ * @see JMXProxyMonitor
+ * @see JFRProxyMonitor
+ */
+public interface ProxyMonitor {
+  /**
+   * Provide empty implementations of all methods of {@link ProxyMonitor}.
+   */
+  public static abstract class Default implements ProxyMonitor {
+    @Override
+    public void templateGenerated(Class<?> interfaze, int byteCount) {
+      // empty
+    }
+    @Override
+    public void proxyClassDefined(Class<?> interfaze, Class<?> proxyClass, int byteCount) {
+      // empty
+    }
+    @Override
+    public void methodLinked(Method method, long nanos) {
+      // empty
+    }
+    @Override
+    public void inliningCacheUpdated(Method method, Class<?> receiverClass, int receiverClassCount) {
+      // empty
+    }
+    @Override
+    public void inliningCacheMegamorphic(Method method) {
+      // empty
+    }
+  }
+
+  /**
+   * Called when the bytecode of a proxy class is generated by ASM,
+   * i.e. not found in the template cache nor generated ahead of time.
+   * @param interfaze the interface implemented by the proxy class.
+   * @param byteCount the size of the bytecode.
+   */
+  public void templateGenerated(Class<?> interfaze, int byteCount);
+
+  /**
+   * Called when a proxy class is defined.
+   * @param interfaze the interface implemented by the proxy class.
+   * @param proxyClass the proxy class.
+   * @param byteCount the size of the bytecode of the proxy class.
+   */
+  public void proxyClassDefined(Class<?> interfaze, Class<?> proxyClass, int byteCount);
+
+  /**
+   * Called when a proxy method is linked.
+   * @param method the linked interface method.
+   * @param nanos the time in nanoseconds spent in {@link Proxy2.ProxyHandler#bootstrap(Proxy2.ProxyContext)}.
+   */
+  public void methodLinked(Method method, long nanos);
+
+  /**
+   * Called when an inlining cache created by {@link MethodBuilder#unreflect(java.lang.invoke.MethodHandles.Lookup, Method)}
+   * sees a new receiver class.
+   * @param method the method called by the inlining cache.
+   * @param receiverClass the class of the receiver.
+   * @param receiverClassCount the number of receiver classes seen so far.
+   */
+  public void inliningCacheUpdated(Method method, Class<?> receiverClass, int receiverClassCount);
+
+  /**
+   * Called when an inlining cache created by {@link MethodBuilder#unreflect(java.lang.invoke.MethodHandles.Lookup, Method)}
+   * sees too many receiver classes and switches to a dispatch table.
+   * @param method the method called by the inlining cache.
+   */
+  public void inliningCacheMegamorphic(Method method);
+}
@@ -0,0 +1,74 @@
+package com.github.forax.proxy2;
+
+import java.util.Map;
+
+/**
+ * The attributes exposed as a JMX MXBean by a {@link JMXProxyMonitor}.
+ */
+public interface ProxyStatsMXBean {
+  /**
+   * Returns the number of proxy classes generated by ASM.
+   * @return the number of proxy classes generated by ASM.
+   */
+  public long getGeneratedTemplateCount();
+
+  /**
+   * Returns the size in bytes of all the bytecode generated by ASM.
+   * @return the size in bytes of all the bytecode generated by ASM.
+   */
+  public long getGeneratedByteCount();
+
+  /**
+   * Returns the number of proxy classes defined.
+   * @return the number of proxy classes defined.
+   */
+  public long getDefinedProxyClassCount();
+
+  /**
+   * Returns the number of proxy classes defined that are not yet unloaded.
+   * @return the number of proxy classes defined that are not yet unloaded.
+   */
+  public long getLiveProxyClassCount();
+
+  /**
+   * Returns the number of proxy methods linked.
+   * @return the number of proxy methods linked.
+   */
+  public long getLinkedMethodCount();
+
+  /**
+   * Returns the time in nanoseconds spent in all the bootstraps.
+   * @return the time in nanoseconds spent in all the bootstraps.
+   */
+  public long getTotalBootstrapNanos();
+
+  /**
+   * Returns the time in nanoseconds of the longest bootstrap.
+   * @return the time in nanoseconds of the longest bootstrap.
+   */
+  public long getMaxBootstrapNanos();
+
+  /**
+   * Returns the time in nanoseconds spent in the bootstraps for each interface method,
+   * the methods of the unloaded interfaces are not reported.
+   * @return the time in nanoseconds spent in the bootstraps for each interface method.
+   */
+  public Map<String, Long> getBootstrapNanosByMethod();
+
+  /**
+   * Returns the number of receiver classes added to the inlining caches.
+   * @return the number of receiver classes added to the inlining caches.
+   */
+  public long getInliningCacheUpdateCount();
+
+  /**
+   * Returns the number of inlining caches that became megamorphic.
+   * @return the number of inlining caches that became megamorphic.
+   */
+  public long getMegamorphicInliningCacheCount();
+
+  /**
+   * Reset all counters.
+   */
+  public void reset();
+}
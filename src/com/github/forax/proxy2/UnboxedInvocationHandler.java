@@ -0,0 +1,347 @@
+package com.github.forax.proxy2;
+
+import static java.lang.invoke.MethodHandles.catchException;
+import static java.lang.invoke.MethodHandles.dropArguments;
+import static java.lang.invoke.MethodHandles.filterArguments;
+import static java.lang.invoke.MethodHandles.foldArguments;
+import static java.lang.invoke.MethodHandles.insertArguments;
+import static java.lang.invoke.MethodHandles.permuteArguments;
+import static java.lang.invoke.MethodHandles.throwException;
+import static java.lang.invoke.MethodType.methodType;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.List;
+
+import com.github.forax.proxy2.Proxy2.ProxyCache;
+import com.github.forax.proxy2.Proxy2.ProxyContext;
+import com.github.forax.proxy2.Proxy2.ProxyHandler;
+
+/**
+ * An equivalent of {@link java.lang.reflect.InvocationHandler} that doesn't box the arguments
+ * nor the return value.
+ *
+ * The arguments of a call are provided by an {@link Invocation} object, which is reused by the calls
+ * of the same thread, and the return value is returned by the method corresponding to the return type
+ * of the called method, by example {@link #invokeInt(Invocation)} if the method returns an int.
+ * All these methods call {@link #invoke(Invocation)} and unbox its result by default,
+ * so a handler written for {@link java.lang.reflect.InvocationHandler} only needs to implement
+ * {@link #invoke(Invocation)} and then can override the methods of the primitive types it cares about.
+ * <pre>
+ *   Counter counter = Proxy2.newProxyInstance(Counter.class, new UnboxedInvocationHandler() {
+ *     public Object invoke(Invocation invocation) {
+ *       return invocation.method().getName();
+ *     }
+ *     public int invokeInt(Invocation invocation) {
+ *       return invocation.intArgument(0) + 1;
+ *     }
+ *   });
+ * </pre>
+ *
+ * Like with {@link java.lang.reflect.Proxy}, a checked exception not declared by the called method
+ * is wrapped into an {@link UndeclaredThrowableException}.
+ *
+ * @see Proxy2#newProxyInstance(Class, UnboxedInvocationHandler)
+ */
+public abstract class UnboxedInvocationHandler {
+  /**
+   * Called when a method of the proxy is called.
+   * @param invocation the proxy, the method and the arguments of the call.
+   * @return the return value of the call, a boxed value if the return type is a primitive type.
+   * @throws Throwable any exception.
+   */
+  public abstract Object invoke(Invocation invocation) throws Throwable;
+
+  /**
+   * Called when a method of the proxy that returns void is called.
+   * @param invocation the proxy, the method and the arguments of the call.
+   * @throws Throwable any exception.
+   *
+   * @implSpec
+   * The implementation calls {@link #invoke(Invocation)}.
+   */
+  public void invokeVoid(Invocation invocation) throws Throwable {
+    invoke(invocation);
+  }
+  /**
+   * Called when a method of the proxy that returns a boolean is called.
+   * @param invocation the proxy, the method and the arguments of the call.
+   * @return the return value of the call.
+   * @throws Throwable any exception.
+   *
+   * @implSpec
+   * The implementation calls {@link #invoke(Invocation)} and unboxes the result.
+   */
+  public boolean invokeBoolean(Invocation invocation) throws Throwable {
+    return (Boolean)invoke(invocation);
+  }
+  /**
+   * Called when a method of the proxy that returns a byte is called.
+   * @param invocation the proxy, the method and the arguments of the call.
+   * @return the return value of the call.
+   * @throws Throwable any exception.
+   *
+   * @implSpec
+   * The implementation calls {@link #invoke(Invocation)} and unboxes the result.
+   */
+  public byte invokeByte(Invocation invocation) throws Throwable {
+    return (Byte)invoke(invocation);
+  }
+  /**
+   * Called when a method of the proxy that returns a char is called.
+   * @param invocation the proxy, the method and the arguments of the call.
+   * @return the return value of the call.
+   * @throws Throwable any exception.
+   *
+   * @implSpec
+   * The implementation calls {@link #invoke(Invocation)} and unboxes the result.
+   */
+  public char invokeChar(Invocation invocation) throws Throwable {
+    return (Character)invoke(invocation);
+  }
+  /**
+   * Called when a method of the proxy that returns a short is called.
+   * @param invocation the proxy, the method and the arguments of the call.
+   * @return the return value of the call.
+   * @throws Throwable any exception.
+   *
+   * @implSpec
+   * The implementation calls {@link #invoke(Invocation)} and unboxes the result.
+   */
+  public short invokeShort(Invocation invocation) throws Throwable {
+    return (Short)invoke(invocation);
+  }
+  /**
+   * Called when a method of the proxy that returns an int is called.
+   * @param invocation the proxy, the method and the arguments of the call.
+   * @return the return value of the call.
+   * @throws Throwable any exception.
+   *
+   * @implSpec
+   * The implementation calls {@link #invoke(Invocation)} and unboxes the result.
+   */
+  public int invokeInt(Invocation invocation) throws Throwable {
+    return (Integer)invoke(invocation);
+  }
+  /**
+   * Called when a method of the proxy that returns a long is called.
+   * @param invocation the proxy, the method and the arguments of the call.
+   * @return the return value of the call.
+   * @throws Throwable any exception.
+   *
+   * @implSpec
+   * The implementation calls {@link #invoke(Invocation)} and unboxes the result.
+   */
+  public long invokeLong(Invocation invocation) throws Throwable {
+    return (Long)invoke(invocation);
+  }
+  /**
+   * Called when a method of the proxy that returns a float is called.
+   * @param invocation the proxy, the method and the arguments of the call.
+   * @return the return value of the call.
+   * @throws Throwable any exception.
+   *
+   * @implSpec
+   * The implementation calls {@link #invoke(Invocation)} and unboxes the result.
+   */
+  public float invokeFloat(Invocation invocation) throws Throwable {
+    return (Float)invoke(invocation);
+  }
+  /**
+   * Called when a method of the proxy that returns a double is called.
+   * @param invocation the proxy, the method and the arguments of the call.
+   * @return the return value of the call.
+   * @throws Throwable any exception.
+   *
+   * @implSpec
+   * The implementation calls {@link #invoke(Invocation)} and unboxes the result.
+   */
+  public double invokeDouble(Invocation invocation) throws Throwable {
+    return (Double)invoke(invocation);
+  }
+
+  // the proxy classes have one field containing the handler
+  static final ProxyCache CACHE = Proxy2.createProxyCache(MethodHandles.publicLookup(), new Linker());
+
+  /**
+   * Link a proxy method to the method of the handler corresponding to its return type,
+   * the arguments are stored in an {@link Invocation} before the call and cleared after.
+   */
+  static class Linker extends ProxyHandler.Default {
+    @Override
+    public boolean override(Method method) {
+      return true;
+    }
+
+    @Override
+    public CallSite bootstrap(ProxyContext context) throws Throwable {
+      Method method = context.method();
+      MethodType type = context.type();   // (Object proxy, UnboxedInvocationHandler handler, arguments...)
+      List<Class<?>> parameterTypes = type.parameterList();
+      int argumentCount = parameterTypes.size() - 2;
+
+      // (Invocation, Object, UnboxedInvocationHandler, arguments...)
+      MethodHandle call = call(type.returnType());
+      MethodHandle target = permuteArguments(call, methodType(call.type().returnType(), Invocation.class, UnboxedInvocationHandler.class), 1, 0);
+      target = dropArguments(target, 1, Object.class);
+      target = dropArguments(target, 3, parameterTypes.subList(2, parameterTypes.size()));
+
+      for(int i = 0; i < argumentCount; i++) {
+        Class<?> parameterType = parameterTypes.get(2 + i);
+        MethodHandle store = insertArguments(store(parameterType), 1, i);
+        store = store.asType(methodType(void.class, Invocation.class, parameterType));
+        store = dropArguments(store, 1, parameterTypes.subList(0, 2 + i));
+        target = foldArguments(target, store);
+      }
+      target = foldArguments(target, insertArguments(ACQUIRE, 1, method, argumentCount));
+      target = catchException(target.asType(type), Throwable.class,
+          filterArguments(throwException(type.returnType(), Throwable.class), 0,
+              insertArguments(CHECK_EXCEPTION, 0, (Object)method.getExceptionTypes())));
+      return new ConstantCallSite(target);
+    }
+
+    private static MethodHandle call(Class<?> returnType) {
+      if (!returnType.isPrimitive()) {
+        return CALLS[CALLS.length - 1];
+      }
+      for(MethodHandle call: CALLS) {
+        if (call.type().returnType() == returnType) {
+          return call;
+        }
+      }
+      throw new AssertionError();
+    }
+
+    private static MethodHandle store(Class<?> parameterType) {
+      if (!parameterType.isPrimitive()) {
+        return STORE_OBJECT;
+      }
+      if (parameterType == boolean.class) {
+        return STORE_BOOLEAN;
+      }
+      return (parameterType == float.class || parameterType == double.class)? STORE_DOUBLE: STORE_LONG;
+    }
+  }
+
+  // referenced by method handles
+
+  static void callVoid(UnboxedInvocationHandler handler, Invocation invocation) throws Throwable {
+    try {
+      handler.invokeVoid(invocation);
+    } finally {
+      invocation.release();
+    }
+  }
+  static boolean callBoolean(UnboxedInvocationHandler handler, Invocation invocation) throws Throwable {
+    try {
+      return handler.invokeBoolean(invocation);
+    } finally {
+      invocation.release();
+    }
+  }
+  static byte callByte(UnboxedInvocationHandler handler, Invocation invocation) throws Throwable {
+    try {
+      return handler.invokeByte(invocation);
+    } finally {
+      invocation.release();
+    }
+  }
+  static char callChar(UnboxedInvocationHandler handler, Invocation invocation) throws Throwable {
+    try {
+      return handler.invokeChar(invocation);
+    } finally {
+      invocation.release();
+    }
+  }
+  static short callShort(UnboxedInvocationHandler handler, Invocation invocation) throws Throwable {
+    try {
+      return handler.invokeShort(invocation);
+    } finally {
+      invocation.release();
+    }
+  }
+  static int callInt(UnboxedInvocationHandler handler, Invocation invocation) throws Throwable {
+    try {
+      return handler.invokeInt(invocation);
+    } finally {
+      invocation.release();
+    }
+  }
+  static long callLong(UnboxedInvocationHandler handler, Invocation invocation) throws Throwable {
+    try {
+      return handler.invokeLong(invocation);
+    } finally {
+      invocation.release();
+    }
+  }
+  static float callFloat(UnboxedInvocationHandler handler, Invocation invocation) throws Throwable {
+    try {
+      return handler.invokeFloat(invocation);
+    } finally {
+      invocation.release();
+    }
+  }
+  static double callDouble(UnboxedInvocationHandler handler, Invocation invocation) throws Throwable {
+    try {
+      return handler.invokeDouble(invocation);
+    } finally {
+      invocation.release();
+    }
+  }
+  static Object callObject(UnboxedInvocationHandler handler, Invocation invocation) throws Throwable {
+    try {
+      return handler.invoke(invocation);
+    } finally {
+      invocation.release();
+    }
+  }
+
+  static Throwable checkException(Class<?>[] exceptionTypes, Throwable throwable) {
+    if (throwable instanceof RuntimeException || throwable instanceof Error) {
+      return throwable;
+    }
+    for(Class<?> exceptionType: exceptionTypes) {
+      if (exceptionType.isInstance(throwable)) {
+        return throwable;
+      }
+    }
+    return new UndeclaredThrowableException(throwable);
+  }
+
+  private static final MethodHandle[] CALLS;  // the last one returns an Object
+  private static final MethodHandle ACQUIRE, STORE_OBJECT, STORE_BOOLEAN, STORE_LONG, STORE_DOUBLE, CHECK_EXCEPTION;
+  static {
+    Lookup lookup = MethodHandles.lookup();
+    Class<?>[] returnTypes = { void.class, boolean.class, byte.class, char.class, short.class,
+                               int.class, long.class, float.class, double.class, Object.class };
+    String[] names = { "callVoid", "callBoolean", "callByte", "callChar", "callShort",
+                       "callInt", "callLong", "callFloat", "callDouble", "callObject" };
+    CALLS = new MethodHandle[returnTypes.length];
+    try {
+      for(int i = 0; i < CALLS.length; i++) {
+        CALLS[i] = lookup.findStatic(UnboxedInvocationHandler.class, names[i],
+            methodType(returnTypes[i], UnboxedInvocationHandler.class, Invocation.class));
+      }
+      ACQUIRE = lookup.findStatic(Invocation.class, "acquire",
+          methodType(Invocation.class, Object.class, Method.class, int.class));
+      STORE_OBJECT = lookup.findStatic(Invocation.class, "storeObject",
+          methodType(void.class, Invocation.class, int.class, Object.class));
+      STORE_BOOLEAN = lookup.findStatic(Invocation.class, "storeBoolean",
+          methodType(void.class, Invocation.class, int.class, boolean.class));
+      STORE_LONG = lookup.findStatic(Invocation.class, "storeLong",
+          methodType(void.class, Invocation.class, int.class, long.class));
+      STORE_DOUBLE = lookup.findStatic(Invocation.class, "storeDouble",
+          methodType(void.class, Invocation.class, int.class, double.class));
+      CHECK_EXCEPTION = lookup.findStatic(UnboxedInvocationHandler.class, "checkException",
+          methodType(Throwable.class, Class[].class, Throwable.class));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,253 @@
+package com.github.forax.proxy2;
+
+import static java.lang.invoke.MethodHandles.dropArguments;
+import static java.lang.invoke.MethodHandles.filterArguments;
+import static java.lang.invoke.MethodHandles.foldArguments;
+import static java.lang.invoke.MethodHandles.guardWithTest;
+import static java.lang.invoke.MethodHandles.insertArguments;
+import static java.lang.invoke.MethodHandles.permuteArguments;
+import static java.lang.invoke.MethodType.methodType;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.github.forax.proxy2.BeanProxyHandler.BeanInfo;
+import com.github.forax.proxy2.Proxy2.ProxyContext;
+
+/**
+ * A unit of work that tracks the modifications of the beans it creates.
+ *
+ * A bean created by {@link #newBean(Class)} is like a bean created by {@link Proxy2#newBean(Class)}
+ * but it also records in a bitset which properties were modified, and the first modification
+ * links the bean into a list of dirty beans of the unit of work.
+ * {@link #drain(DirtyBeanVisitor)} visits the dirty beans and resets their state, so a commit
+ * only costs the number of dirty beans and the setters never allocate.
+ * <pre>
+ *   UnitOfWork unitOfWork = new UnitOfWork();
+ *   User user = unitOfWork.newBean(User.class).name("Bob");
+ *   ...
+ *   unitOfWork.drain(new DirtyBeanVisitor() {
+ *     public void visit(Object bean, long dirtyProperties) {
+ *       // update the database
+ *     }
+ *   });
+ * </pre>
+ *
+ * A unit of work and its beans must not be used by several threads at the same time.
+ */
+public final class UnitOfWork {
+  /**
+   * Receive the dirty beans of a unit of work.
+   *
+   * @see UnitOfWork#drain(DirtyBeanVisitor)
+   */
+  public interface DirtyBeanVisitor {
+    /**
+     * Called for each dirty bean.
+     * @param bean a dirty bean.
+     * @param dirtyProperties a bitset of the properties modified, the bit {@code i} corresponds to
+     *                        the property {@code i} of {@link UnitOfWork#properties(Class)}.
+     */
+    public void visit(Object bean, long dirtyProperties);
+  }
+
+  private Object head;  // the last bean marked dirty, linked by the field next of the beans
+  private int dirtyCount;
+
+  /**
+   * Returns the number of dirty beans.
+   * @return the number of dirty beans.
+   */
+  public int dirtyCount() {
+    return dirtyCount;
+  }
+
+  /**
+   * Creates a bean implementing the interface {@code type} whose modifications are tracked by this unit of work,
+   * all properties being initialized with their default value.
+   * The interface must follow the same rules as {@link Proxy2#newBean(Class)} and have at most 64 properties.
+   *
+   * @param type a public interface containing only getters and setters.
+   * @return a new bean, not dirty.
+   * @throws IllegalArgumentException if {@code type} is not a public interface, contains
+   *         an abstract method which is neither a getter nor a setter or has more than 64 properties.
+   * @throws UnsupportedOperationException if the class definition backend can not provide
+   *         a private access to the proxy class.
+   */
+  public <T> T newBean(Class<T> type) {
+    MethodHandle factory = TRACKED_BEANS.get(type).factory;
+    try {
+      return type.cast(factory.invoke(this));
+    } catch(RuntimeException | Error e) {
+      throw e;
+    } catch (Throwable e) {
+      throw new UndeclaredThrowableException(e);
+    }
+  }
+
+  /**
+   * Visits the dirty beans, from the last one marked dirty to the first one, and marks them as not dirty.
+   * A bean modified by the visitor is tracked again.
+   * @param visitor the visitor called for each dirty bean.
+   */
+  public void drain(DirtyBeanVisitor visitor) {
+    Object bean = head;
+    head = null;
+    dirtyCount = 0;
+    while(bean != null) {
+      TrackedBean trackedBean = PROXY_CLASSES.get(bean.getClass());
+      Object next;
+      long dirtyProperties;
+      try {
+        next = (Object)trackedBean.getNext.invokeExact(bean);
+        dirtyProperties = (long)trackedBean.getDirty.invokeExact(bean);
+        trackedBean.setNext.invokeExact(bean, (Object)null);
+        trackedBean.setDirty.invokeExact(bean, 0L);
+      } catch (Throwable e) {
+        throw new AssertionError(e);
+      }
+      visitor.visit(bean, dirtyProperties);
+      bean = next;
+    }
+  }
+
+  /**
+   * Returns the names of the properties of a bean interface,
+   * in the order of the bits of {@link DirtyBeanVisitor#visit(Object, long)}.
+   * @param type an interface containing only getters and setters.
+   * @return an unmodifiable list of the property names.
+   * @throws IllegalArgumentException if {@code type} is not an interface or contains
+   *         an abstract method which is neither a getter nor a setter.
+   */
+  public static List<String> properties(Class<?> type) {
+    return Collections.unmodifiableList(Arrays.asList(BeanProxyHandler.BEAN_INFOS.get(type).names));
+  }
+
+  /**
+   * Returns the type of the factory of a tracked bean, the fields are the properties,
+   * followed by the dirty bitset, the next dirty bean and the unit of work.
+   */
+  static MethodType trackedBeanType(Class<?> type) {
+    BeanInfo beanInfo = BeanProxyHandler.BEAN_INFOS.get(type);
+    if (beanInfo.names.length > 64) {
+      throw new IllegalArgumentException(type + " has more than 64 properties");
+    }
+    return beanInfo.beanType(type).appendParameterTypes(long.class, Object.class, UnitOfWork.class);
+  }
+
+  /**
+   * The factory and the accessors of the tracking fields of the class of a tracked bean.
+   */
+  private static final class TrackedBean {
+    final Class<?> proxyClass;
+    final MethodHandle factory;
+    final MethodHandle getDirty, setDirty, getNext, setNext;
+
+    TrackedBean(Class<?> type) {
+      MethodType beanType = trackedBeanType(type);
+      Lookup lookup = Proxy2.defineProxyClass(MethodHandles.publicLookup(), beanType, HANDLER);
+      if ((lookup.lookupModes() & Lookup.PRIVATE) == 0) {
+        throw new UnsupportedOperationException("tracked beans are not supported by the backend " + ProxyBackend.INSTANCE.getClass().getSimpleName());
+      }
+      proxyClass = lookup.lookupClass();
+      factory = BeanProxyHandler.defaultValues(Proxy2.factory(lookup, beanType), 1);
+      int dirtyIndex = beanType.parameterCount() - 3;
+      try {
+        getDirty = lookup.findGetter(proxyClass, "arg" + dirtyIndex, long.class).asType(methodType(long.class, Object.class));
+        setDirty = lookup.findSetter(proxyClass, "arg" + dirtyIndex, long.class).asType(methodType(void.class, Object.class, long.class));
+        getNext = lookup.findGetter(proxyClass, "arg" + (dirtyIndex + 1), Object.class).asType(methodType(Object.class, Object.class));
+        setNext = lookup.findSetter(proxyClass, "arg" + (dirtyIndex + 1), Object.class).asType(methodType(void.class, Object.class, Object.class));
+      } catch (NoSuchFieldException | IllegalAccessException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  private static final BeanProxyHandler HANDLER = new BeanProxyHandler(true);
+
+  // by bean interface
+  private static final ClassValue<TrackedBean> TRACKED_BEANS = new ClassValue<TrackedBean>() {
+    @Override
+    protected TrackedBean computeValue(Class<?> type) {
+      return new TrackedBean(type);
+    }
+  };
+
+  // by proxy class, a tracked bean only implements its bean interface
+  private static final ClassValue<TrackedBean> PROXY_CLASSES = new ClassValue<TrackedBean>() {
+    @Override
+    protected TrackedBean computeValue(Class<?> proxyClass) {
+      TrackedBean trackedBean = TRACKED_BEANS.get(proxyClass.getInterfaces()[0]);
+      if (trackedBean.proxyClass != proxyClass) {
+        throw new IllegalStateException(proxyClass + " is not the class of a tracked bean");
+      }
+      return trackedBean;
+    }
+  };
+
+  /**
+   * Returns a method handle that marks the property {@code propertyIndex} of a tracked bean dirty,
+   * its type is the type of the setter {@code type}, (Object proxy, fields..., value)void.
+   */
+  static MethodHandle markDirty(ProxyContext context, int propertyIndex, MethodType type) throws NoSuchFieldException {
+    int dirtyIndex = type.parameterCount() - 2 - 3;  // the fields are between the proxy and the value
+    int nextIndex = dirtyIndex + 1;
+    int unitOfWorkIndex = dirtyIndex + 2;
+
+    // (Object proxy, long dirty)void, proxy.dirty = dirty | bit
+    MethodHandle markBit = filterArguments(context.findFieldSetter(dirtyIndex, long.class), 1,
+        insertArguments(OR, 1, 1L << propertyIndex));
+
+    // (Object proxy, UnitOfWork unitOfWork)void, proxy.next = unitOfWork.link(proxy)
+    MethodHandle setNext = permuteArguments(context.findFieldSetter(nextIndex, Object.class),
+        methodType(void.class, Object.class, Object.class, UnitOfWork.class), 1, 0);
+    MethodHandle link = foldArguments(setNext, LINK);
+
+    // (Object proxy, long dirty, UnitOfWork unitOfWork)void
+    MethodType markType = methodType(void.class, Object.class, long.class, UnitOfWork.class);
+    MethodHandle linkIfClean = guardWithTest(
+        permuteArguments(IS_CLEAN, markType.changeReturnType(boolean.class), 1),
+        dropArguments(link, 1, long.class),
+        dropArguments(NOP, 0, markType.parameterList()));
+    MethodHandle mark = foldArguments(dropArguments(markBit, 2, UnitOfWork.class), linkIfClean);
+
+    return permuteArguments(mark, type, 0, 1 + dirtyIndex, 1 + unitOfWorkIndex);
+  }
+
+  // referenced by method handles
+
+  static long or(long dirty, long bit) {
+    return dirty | bit;
+  }
+  static boolean isClean(long dirty) {
+    return dirty == 0;
+  }
+  static void nop() {
+    // empty
+  }
+  static Object link(Object bean, UnitOfWork unitOfWork) {
+    Object next = unitOfWork.head;
+    unitOfWork.head = bean;
+    unitOfWork.dirtyCount++;
+    return next;
+  }
+
+  private static final MethodHandle OR, IS_CLEAN, NOP, LINK;
+  static {
+    Lookup lookup = MethodHandles.lookup();
+    try {
+      OR = lookup.findStatic(UnitOfWork.class, "or", methodType(long.class, long.class, long.class));
+      IS_CLEAN = lookup.findStatic(UnitOfWork.class, "isClean", methodType(boolean.class, long.class));
+      NOP = lookup.findStatic(UnitOfWork.class, "nop", methodType(void.class));
+      LINK = lookup.findStatic(UnitOfWork.class, "link", methodType(Object.class, Object.class, UnitOfWork.class));
+    } catch (NoSuchMethodException | IllegalAccessException e) {
+      throw new AssertionError(e);
+    }
+  }
+}